@@ -0,0 +1,163 @@
+//
+//    CenterCropBenchmark.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.benchmark;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nloko.android.CenterCrop;
+
+// Compares the single pass Utils.centerCrop with the resize and crop it
+// replaced, for the 44 pixel thumbnails and the 96 pixel sync crops.
+// Run with -prof gc to compare what each allocates per crop.
+//
+// This is a model of the two paths, not the paths themselves. 
+// android.graphics only exists on a device, so the drawing is redone with
+// java2d: a BufferedImage for each Bitmap and a Graphics2D with bilinear
+// filtering for each Canvas and filtering Paint. The numbers show how the
+// number and size of the intermediate bitmaps compare, not what a device
+// spends. The single pass takes its rectangles from CenterCrop, the same
+// geometry Utils.centerCrop uses. The old path was removed from Utils, so
+// its geometry is kept here as it was.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CenterCropBenchmark {
+	
+	// the width of a portrait picture, 4:3 like most camera photos
+	@Param({ "200", "720" })
+	public int source;
+	
+	@Param({ "44", "96" })
+	public int dest;
+	
+	private BufferedImage mBitmap;
+	private BufferedImage mReuse;
+	
+	@Setup
+	public void setUp() {
+		mBitmap = new BufferedImage(source, source * 4 / 3, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D canvas = mBitmap.createGraphics();
+		canvas.setPaint(new GradientPaint(0, 0, Color.ORANGE, source, source, Color.BLUE));
+		canvas.fillRect(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+		canvas.dispose();
+		
+		mReuse = singlePass(mBitmap, dest, dest, null);
+	}
+	
+	@Benchmark
+	public BufferedImage resizeAndCrop() {
+		return resizeAndCrop(mBitmap, dest, dest);
+	}
+	
+	@Benchmark
+	public BufferedImage singlePass() {
+		return singlePass(mBitmap, dest, dest, null);
+	}
+	
+	// the way SyncService crops into the bitmap of the previous crop
+	@Benchmark
+	public BufferedImage singlePassReused() {
+		return singlePass(mBitmap, dest, dest, mReuse);
+	}
+	
+	// The old centerCrop: resize() scales the whole bitmap so its shorter 
+	// side fits, then crop() draws the middle of that into a new bitmap.
+	private static BufferedImage resizeAndCrop(BufferedImage bitmap, int destHeight, int destWidth) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		
+		int newWidth, newHeight;
+		if (height > width) {
+			newWidth = Math.min(width, destWidth);
+			newHeight = Math.round((float) height / width * newWidth);
+		} else {
+			newHeight = Math.min(height, destHeight);
+			newWidth = Math.round((float) width / height * newHeight);
+		}
+		
+		BufferedImage resized = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_ARGB);
+		draw(bitmap, 0, 0, width, height, resized, newWidth, newHeight);
+		if (newWidth <= destWidth && newHeight <= destHeight) {
+			return resized;
+		}
+		
+		BufferedImage b = new BufferedImage(destWidth, destHeight, BufferedImage.TYPE_USHORT_565_RGB);
+		int midpointX = newWidth / 2;
+		int midpointY = newHeight / 2;
+		draw(resized, midpointX - destWidth / 2, midpointY - destHeight / 2, destWidth, destHeight,
+				b, destWidth, destHeight);
+		return b;
+	}
+	
+	// Utils.centerCrop: the middle of the source is scaled straight into 
+	// the result, or into reuse when it has the resulting size
+	private static BufferedImage singlePass(BufferedImage bitmap, int destHeight, int destWidth, BufferedImage reuse) {
+		CenterCrop crop = new CenterCrop(bitmap.getWidth(), bitmap.getHeight(), destWidth, destHeight);
+		if (crop.isWhole()) {
+			return bitmap;
+		}
+		
+		BufferedImage b;
+		if (reuse != null && reuse.getWidth() == crop.outWidth && reuse.getHeight() == crop.outHeight) {
+			b = reuse;
+		} else {
+			b = new BufferedImage(crop.outWidth, crop.outHeight, BufferedImage.TYPE_USHORT_565_RGB);
+		}
+		
+		draw(bitmap, crop.left, crop.top, crop.srcWidth, crop.srcHeight, b, crop.outWidth, crop.outHeight);
+		return b;
+	}
+	
+	private static void draw(BufferedImage src, int left, int top, int srcWidth, int srcHeight, 
+			BufferedImage dest, int destWidth, int destHeight) {
+		Graphics2D canvas = dest.createGraphics();
+		try {
+			canvas.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			canvas.drawImage(src, 0, 0, destWidth, destHeight, 
+					left, top, left + srcWidth, top + srcHeight, null);
+		} finally {
+			canvas.dispose();
+		}
+	}
+}
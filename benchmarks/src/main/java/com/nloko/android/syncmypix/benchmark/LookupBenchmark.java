@@ -0,0 +1,206 @@
+//
+//    LookupBenchmark.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nloko.android.syncmypix.SyncMyPix.Contacts;
+import com.nloko.android.syncmypix.SyncMyPix.Results;
+import com.nloko.android.syncmypix.SyncMyPixSchema;
+
+// Runs the per friend lookups of a sync against syncpix.db tables of
+// growing size, with and without the indexes of schema version 8. With
+// the indexes the cost of a lookup should stay flat up to 10k rows.
+//
+// SQLite runs through JDBC here, on the tables and indexes of 
+// SyncMyPixSchema, which SyncMyPixProvider creates too.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+	
+	private static final String SOURCE = "com.nloko.android.syncmypix.facebook";
+	private static final String OTHER_SOURCE = "com.nloko.android.syncmypix.other";
+	
+	@Param({ "100", "1000", "10000" })
+	public int rows;
+	
+	@Param({ "false", "true" })
+	public boolean indexed;
+	
+	private Connection mDb;
+	// SyncMyPixDbHelper.getLinkedContact
+	private PreparedStatement mLinkedContact;
+	// the thumbnail lookups of SyncResultsActivity
+	private PreparedStatement mResultByPicUrl;
+	private int[] mKeys;
+	private int mNext = 0;
+	
+	@Setup
+	public void setUp() throws SQLException {
+		mDb = DriverManager.getConnection("jdbc:sqlite::memory:");
+		Statement statement = mDb.createStatement();
+		try {
+			statement.execute(SyncMyPixSchema.createContactsTable(SyncMyPixSchema.CONTACTS_TABLE_NAME));
+			statement.execute(SyncMyPixSchema.createResultsTable(SyncMyPixSchema.RESULTS_TABLE_NAME));
+			statement.execute(SyncMyPixSchema.createSyncTable(SyncMyPixSchema.SYNC_TABLE_NAME));
+			statement.execute(SyncMyPixSchema.CREATE_FRIENDS_TABLE);
+			statement.execute(SyncMyPixSchema.CREATE_PHONE_CONTACTS_TABLE);
+			
+			if (indexed) {
+				for (String index : SyncMyPixSchema.getIndexes()) {
+					statement.execute(index);
+				}
+			}
+		} finally {
+			statement.close();
+		}
+		
+		fill();
+		
+		mLinkedContact = mDb.prepareStatement("SELECT " 
+				+ Contacts._ID + "," + Contacts.LOOKUP_KEY 
+				+ " FROM " + SyncMyPixSchema.CONTACTS_TABLE_NAME + " WHERE "
+				+ Contacts.FRIEND_ID + "=? AND " + Contacts.SOURCE + "=?");
+		mResultByPicUrl = mDb.prepareStatement("SELECT " 
+				+ Results._ID + "," + Results.PIC_URL 
+				+ " FROM " + SyncMyPixSchema.RESULTS_TABLE_NAME + " WHERE " 
+				+ Results.PIC_URL + "=? ORDER BY " + Results.DEFAULT_SORT_ORDER);
+		
+		// every friend once per pass, in no particular order
+		Random random = new Random(rows);
+		mKeys = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			int j = random.nextInt(i + 1);
+			mKeys[i] = mKeys[j];
+			mKeys[j] = i;
+		}
+	}
+	
+	// One contact and one result per friend, a tenth of the contacts
+	// linked by another source
+	private void fill() throws SQLException {
+		mDb.setAutoCommit(false);
+		PreparedStatement contact = mDb.prepareStatement("INSERT INTO " + SyncMyPixSchema.CONTACTS_TABLE_NAME + " (" 
+				+ Contacts._ID + "," + Contacts.LOOKUP_KEY + "," + Contacts.PIC_URL + "," 
+				+ Contacts.PHOTO_HASH + "," + Contacts.FRIEND_ID + "," + Contacts.SOURCE
+				+ ") VALUES (?,?,?,?,?,?)");
+		PreparedStatement result = mDb.prepareStatement("INSERT INTO " + SyncMyPixSchema.RESULTS_TABLE_NAME + " ("
+				+ Results.SYNC_ID + "," + Results.NAME + "," + Results.DESCRIPTION + "," 
+				+ Results.PIC_URL + "," + Results.CONTACT_ID + "," + Results.FRIEND_ID 
+				+ ") VALUES (?,?,?,?,?,?)");
+		try {
+			for (int i = 0; i < rows; i++) {
+				contact.setInt(1, i + 1);
+				contact.setString(2, "lookup" + i);
+				contact.setString(3, picUrl(i));
+				contact.setString(4, Integer.toHexString(i * 31));
+				contact.setString(5, friendId(i));
+				contact.setString(6, i % 10 == 0 ? OTHER_SOURCE : SOURCE);
+				contact.addBatch();
+				
+				result.setInt(1, 1);
+				result.setString(2, "Friend " + i);
+				result.setString(3, "Updated");
+				result.setString(4, picUrl(i));
+				result.setInt(5, i + 1);
+				result.setString(6, friendId(i));
+				result.addBatch();
+			}
+			contact.executeBatch();
+			result.executeBatch();
+			mDb.commit();
+		} finally {
+			contact.close();
+			result.close();
+			mDb.setAutoCommit(true);
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws SQLException {
+		mDb.close();
+	}
+	
+	@Benchmark
+	public String linkedContact() throws SQLException {
+		mLinkedContact.setString(1, friendId(nextKey()));
+		mLinkedContact.setString(2, SOURCE);
+		return first(mLinkedContact);
+	}
+	
+	@Benchmark
+	public String resultByPicUrl() throws SQLException {
+		mResultByPicUrl.setString(1, picUrl(nextKey()));
+		return first(mResultByPicUrl);
+	}
+	
+	private static String first(PreparedStatement query) throws SQLException {
+		ResultSet rows = query.executeQuery();
+		try {
+			return rows.next() ? rows.getString(1) : null;
+		} finally {
+			rows.close();
+		}
+	}
+	
+	private int nextKey() {
+		int key = mKeys[mNext];
+		if (++mNext == mKeys.length) {
+			mNext = 0;
+		}
+		return key;
+	}
+	
+	private static String friendId(int i) {
+		return String.valueOf(100000000L + i * 7919L);
+	}
+	
+	private static String picUrl(int i) {
+		return "http://profile.example.com/" + friendId(i) + "/picture.jpg";
+	}
+}
@@ -0,0 +1,97 @@
+//
+//    MatcherPreferences.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.benchmark;
+
+import com.nloko.android.syncmypix.SyncMyPixPreferences;
+
+// The name matching settings, without the SharedPreferences behind the
+// app's own implementation. Everything else has the app's defaults.
+public class MatcherPreferences implements SyncMyPixPreferences {
+	
+	private final boolean mConsiderDiminutives;
+	private final boolean mRomanizeGreek;
+	private final boolean mSpanishNames;
+	
+	public MatcherPreferences(boolean considerDiminutives, boolean romanizeGreek, boolean spanishNames) {
+		mConsiderDiminutives = considerDiminutives;
+		mRomanizeGreek = romanizeGreek;
+		mSpanishNames = spanishNames;
+	}
+	
+	public boolean isGoogleSyncToggledOff() {
+		return false;
+	}
+	
+	public boolean getAllowGoogleSync() {
+		return true;
+	}
+	
+	public boolean getSkipIfExists() {
+		return false;
+	}
+	
+	public boolean getSkipIfConflict() {
+		return false;
+	}
+	
+	public boolean overrideReadOnlyCheck() {
+		return true;
+	}
+	
+	public boolean getMaxQuality() {
+		return true;
+	}
+	
+	public boolean getCropSquare() {
+		return false;
+	}
+	
+	public boolean getCache() {
+		return true;
+	}
+	
+	public boolean getIntelliMatch() {
+		return true;
+	}
+	
+	public boolean getPhoneOnly() {
+		return false;
+	}
+	
+	public boolean getConsiderDiminutives() {
+		return mConsiderDiminutives;
+	}
+	
+	public boolean getRomanizeGreek() {
+		return mRomanizeGreek;
+	}
+	
+	public boolean getSpanishNames() {
+		return mSpanishNames;
+	}
+	
+	public String getSource() {
+		return null;
+	}
+}
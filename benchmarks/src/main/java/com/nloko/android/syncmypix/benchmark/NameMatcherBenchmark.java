@@ -0,0 +1,99 @@
+//
+//    NameMatcherBenchmark.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nloko.android.syncmypix.PhoneContact;
+import com.nloko.android.syncmypix.namematcher.NameMatcher;
+
+// Matches one friend per operation against an address book of the same
+// size. Throughput and the p99 of SampleTime are per match, run with 
+// -prof gc for the allocation rate.
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NameMatcherBenchmark {
+	
+	@Param({ "100", "1000", "10000", "50000" })
+	public int size;
+	
+	// off by default, it runs every name through the transcriber first
+	@Param({ "false", "true" })
+	public boolean romanizeGreek;
+	
+	private NameMatcher mMatcher;
+	private String[] mFriends;
+	private int mNext = 0;
+	
+	@Setup
+	public void setUp() throws Exception {
+		List<PhoneContact> contacts = Names.addressBook(size);
+		mFriends = Names.friends(contacts, size);
+		// a matcher is used by one thread only, each gets its own
+		mMatcher = new NameMatcher(Names.source(contacts), 
+				new MatcherPreferences(true, romanizeGreek, false), 
+				Names.diminutives());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		mMatcher.destroy();
+	}
+	
+	@Benchmark
+	public PhoneContact match() {
+		return mMatcher.match(nextFriend(), true);
+	}
+	
+	@Benchmark
+	public PhoneContact exactMatch() {
+		return mMatcher.exactMatch(nextFriend());
+	}
+	
+	private String nextFriend() {
+		String friend = mFriends[mNext];
+		if (++mNext == mFriends.length) {
+			mNext = 0;
+		}
+		return friend;
+	}
+}
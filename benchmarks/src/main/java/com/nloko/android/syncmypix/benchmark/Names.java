@@ -0,0 +1,169 @@
+//
+//    Names.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.benchmark;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.nloko.android.syncmypix.PhoneContact;
+import com.nloko.android.syncmypix.namematcher.ContactSource;
+
+// Synthetic address books and friend lists. The same size always gives
+// the same names, so runs can be compared.
+public final class Names {
+	
+	private static final String[] FIRST_NAMES = {
+		"Paul", "Robert", "Andrew", "Joanna", "Theresia", "Alexandra", "Eleanor", "William",
+		"Elizabeth", "Catherine", "Michael", "Margaret", "Benjamin", "Rebecca", "Albert", "Isabella",
+		"Alejandro", "Andrés", "José", "María", "Inés", "Begoña", "Ramón", "Lucía",
+		"Jürgen", "Björn", "Søren", "Åsa", "Françoise", "Hélène", "Zoë", "Noël",
+		"Łukasz", "Wojciech", "Małgorzata", "Zbigniew", "Jiří", "Tomáš", "Dvořák", "Šárka",
+		"Şükrü", "Gülşen", "İsmail", "Özlem", "Nikos", "Eleni", "Giorgos", "Dimitra",
+		"Ξανθή", "Γιώργος", "Αθηνά", "Χρήστος", "Tala", "Prince", "Ellie", "Andrea"
+	};
+	
+	private static final String[] LAST_NAMES = {
+		"Dunlop", "Cook", "Stribblehill", "Frisch", "Paul", "Second", "Robert", "Two",
+		"Smith", "Jones", "Williams", "Brown", "Taylor", "Davies", "Evans", "Thomas",
+		"Cuervo", "Beltrán", "García", "Fernández", "González", "Muñoz", "Peña", "Álvarez",
+		"von Daniken", "Müller", "Schröder", "Weiß", "Jørgensen", "Ångström", "Lefèvre", "Côté",
+		"Wiśniewski", "Wójcik", "Kowalczyk", "Żukowski", "Dvořáková", "Novák", "Černý", "Šťastný",
+		"Yılmaz", "Öztürk", "Çelik", "Doğan", "Papadopoulos", "Spinellis", "Οικονόμου", "Παπαδάκης",
+		"O'Brien", "MacDonald", "Nguyen", "Kim", "Okafor", "Haddad", "Ivanov", "Rossi"
+	};
+	
+	// first names the diminutives list knows a short form of
+	private static final String[][] SHORT_FORMS = {
+		{ "Robert", "Bob" }, { "Andrew", "Andy" }, { "Alexandra", "Lex" }, { "Eleanor", "Ellie" },
+		{ "William", "Bill" }, { "Elizabeth", "Beth" }, { "Catherine", "Cathy" }, { "Michael", "Mike" },
+		{ "Margaret", "Maggie" }, { "Benjamin", "Ben" }, { "Rebecca", "Becky" }, { "Albert", "Al" },
+		{ "Isabella", "Bella" }, { "Alejandro", "Alejo" }
+	};
+	
+	private Names() {}
+	
+	// Returns size contacts, a few of them with a middle name or only one name
+	public static List<PhoneContact> addressBook(int size) {
+		Random random = new Random(size);
+		List<PhoneContact> contacts = new ArrayList<PhoneContact>(size);
+		for (int i = 0; i < size; i++) {
+			String name;
+			int kind = random.nextInt(20);
+			if (kind == 0) {
+				name = pick(random, FIRST_NAMES);
+			} else if (kind == 1) {
+				name = pick(random, FIRST_NAMES) + " " + pick(random, FIRST_NAMES) + " " + pick(random, LAST_NAMES);
+			} else {
+				name = pick(random, FIRST_NAMES) + " " + pick(random, LAST_NAMES);
+			}
+			contacts.add(new PhoneContact(String.valueOf(i + 1), name, "lookup" + (i + 1)));
+		}
+		return contacts;
+	}
+	
+	// Returns size friend names written the ways the social networks do,
+	// about a fifth of them with no contact in the address book
+	public static String[] friends(List<PhoneContact> contacts, int size) {
+		Random random = new Random(~size);
+		String[] friends = new String[size];
+		for (int i = 0; i < size; i++) {
+			String name = contacts.get(random.nextInt(contacts.size())).name;
+			int space = name.lastIndexOf(' ');
+			String first = space < 0 ? name : name.substring(0, name.indexOf(' '));
+			String last = space < 0 ? "" : name.substring(space + 1);
+			
+			switch (random.nextInt(10)) {
+			case 0:
+			case 1:
+				// nobody we know
+				friends[i] = pick(random, FIRST_NAMES) + " Nosuchname" + random.nextInt(1000);
+				break;
+			case 2:
+				friends[i] = last + ", " + first;
+				break;
+			case 3:
+				friends[i] = shortForm(first) + " " + last;
+				break;
+			case 4:
+				friends[i] = first.charAt(0) + " " + last;
+				break;
+			case 5:
+				friends[i] = "  " + name.toUpperCase() + " (work) ";
+				break;
+			case 6:
+				friends[i] = first;
+				break;
+			default:
+				friends[i] = name;
+				break;
+			}
+		}
+		return friends;
+	}
+	
+	// Returns a mix of all the names, the way they are written in contacts
+	// and by the social networks
+	public static String[] corpus(int size) {
+		List<PhoneContact> contacts = addressBook(size);
+		String[] friends = friends(contacts, size);
+		String[] corpus = new String[size * 2];
+		for (int i = 0; i < size; i++) {
+			corpus[i * 2] = contacts.get(i).name;
+			corpus[i * 2 + 1] = friends[i];
+		}
+		return corpus;
+	}
+	
+	public static ContactSource source(final List<PhoneContact> contacts) {
+		return new ContactSource() {
+			public List<PhoneContact> getContacts(boolean withPhone) {
+				return contacts;
+			}
+		};
+	}
+	
+	// The diminutives the app ships in res/raw
+	public static InputStream diminutives() {
+		InputStream in = Names.class.getResourceAsStream("/diminutives.txt");
+		if (in == null) {
+			throw new IllegalStateException("diminutives.txt is not on the class path");
+		}
+		return in;
+	}
+	
+	private static String shortForm(String first) {
+		for (String[] form : SHORT_FORMS) {
+			if (form[0].equals(first)) {
+				return form[1];
+			}
+		}
+		return first;
+	}
+	
+	private static String pick(Random random, String[] names) {
+		return names[random.nextInt(names.length)];
+	}
+}
@@ -0,0 +1,86 @@
+//
+//    LegacyNormalizer.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.namematcher;
+
+import java.util.Locale;
+
+import gr.spinellis.greek.GreekTranscribe;
+
+// NameMatcher.normalizeName() as it was before the fold table, followed
+// by the split its callers did, for NormalizeNameBenchmark to compare with.
+public class LegacyNormalizer {
+	
+    protected final String mBadChars = "ŠŚŞŹŽŻşšśžźżŸĄÀÁÂÃÄÅÇĆÈÉÊËĘÌÍÎÏİÐĞŁŃÑÖÒÓÔÕÖÙÚÛÜÝąàáâãäåçćèéêëęìíîïıðğłñńòóôõöùúûüýÿ";
+    protected final String mGoodChars = "SSSZZZssszzzYAAAAAAACCEEEEEIIIIIDGLNNOOOOOOUUUUYaaaaaaacceeeeeiiiiidglnnooooouuuuyy ";
+    
+    private final boolean mRomanizeGreek;
+    
+    public LegacyNormalizer(boolean romanizeGreek) {
+    	mRomanizeGreek = romanizeGreek;
+    }
+    
+    public String[] normalizeName(String name) {
+    	String normalized = normalize(name);
+    	return normalized == null ? null : normalized.split(" ");
+    }
+    
+    private String normalize(String name) {
+    	if (mRomanizeGreek) {
+    		name = GreekTranscribe.string(name);
+    	}
+
+    	if (name == null) {
+    		return null;
+    	}
+    	
+        StringBuffer newName = new StringBuffer(name.toLowerCase(Locale.getDefault()).trim());
+        
+        int bracket = 0;
+        int newNameLength = newName.length();
+        for (int i = 0; i < newNameLength; i++) {
+            char c = newName.charAt(i);
+            
+            // Filter out accented characters.
+            int badIndex = mBadChars.indexOf(c); 
+            if (badIndex > -1)
+                newName.setCharAt(i, mGoodChars.charAt(badIndex));
+            
+            // Delete text in brackets, the - character if it's the last one,
+            // commas and duplicate whitespace.
+            if (c == '(') bracket++;
+            if (bracket > 0 || 
+                    (i == newNameLength - 1 && c == '-') ||
+                    (c == ' ' && i == 0) ||
+                    (c == ' ' && i > 0 && newName.charAt(i - 1) == ' ')) {
+                if (c == ')') bracket--;
+                newName.deleteCharAt(i);
+                newNameLength--;
+                i--; // Step backwards, so the continue statement puts us back
+                     // to the right place.
+                continue;
+            }
+        }
+        return newName.toString();
+    }
+}
@@ -0,0 +1,87 @@
+//
+//    NormalizeNameBenchmark.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.namematcher;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nloko.android.syncmypix.PhoneContact;
+import com.nloko.android.syncmypix.benchmark.MatcherPreferences;
+import com.nloko.android.syncmypix.benchmark.Names;
+
+// Normalizes one name per operation with the fold table and with the old
+// indexOf and StringBuffer implementation, over contact and friend names 
+// in English, Spanish, German, Nordic, French, Polish, Czech, Turkish and
+// Greek. Run with -prof gc to compare what each allocates per name.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NormalizeNameBenchmark {
+	
+	private NameMatcher mMatcher;
+	private LegacyNormalizer mLegacy;
+	private String[] mNames;
+	private int mNext = 0;
+	
+	@Setup
+	public void setUp() throws Exception {
+		mNames = Names.corpus(1000);
+		// normalizeName() doesn't need any contacts
+		mMatcher = new NameMatcher(Names.source(new ArrayList<PhoneContact>()), 
+				new MatcherPreferences(false, false, false), null);
+		mLegacy = new LegacyNormalizer(false);
+	}
+	
+	@Benchmark
+	public String[] foldTable() {
+		return mMatcher.normalizeName(nextName());
+	}
+	
+	@Benchmark
+	public String[] legacy() {
+		return mLegacy.normalizeName(nextName());
+	}
+	
+	private String nextName() {
+		String name = mNames[mNext];
+		if (++mNext == mNames.length) {
+			mNext = 0;
+		}
+		return name;
+	}
+}
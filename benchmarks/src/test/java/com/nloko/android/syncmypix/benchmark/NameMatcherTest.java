@@ -0,0 +1,191 @@
+//
+//    NameMatcherTest.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.nloko.android.syncmypix.PhoneContact;
+import com.nloko.android.syncmypix.namematcher.NameMatcher;
+
+// The cases of NameMatcher's old unitTest(), so the benchmarks only
+// measure a matcher that still matches what it used to.
+public class NameMatcherTest {
+	
+	private static final PhoneContact theresia = new PhoneContact("1", "Theresia Paul", "");
+	private static final PhoneContact alejandro = new PhoneContact("2", "Alejandro Cuervo", "");
+	private static final PhoneContact tala = new PhoneContact("3", "Tala von Daniken", "");
+	private static final PhoneContact paul = new PhoneContact("4", "Paul Dunlop", "");
+	private static final PhoneContact andre = new PhoneContact("5", "Andrea Beltrán", "");
+	private static final PhoneContact joanna1 = new PhoneContact("6", "Joanna Frisch", "");
+	private static final PhoneContact joanna2 = new PhoneContact("7", "Joanna Something", "");
+	private static final PhoneContact stribb = new PhoneContact("8", "Andrew Stribblehill", "");
+	private static final PhoneContact rob = new PhoneContact("9", "Robert Cook", "");
+	private static final PhoneContact prince = new PhoneContact("10", "Prince", "");
+	private static final PhoneContact rob2 = new PhoneContact("11", "Robert Second", "");
+	private static final PhoneContact rob3 = new PhoneContact("12", "John Robert", "");
+	private static final PhoneContact alex1 = new PhoneContact("13", "Alexandra One", "");
+	private static final PhoneContact ellie = new PhoneContact("14", "Ellie Two", "");
+	
+	private static NameMatcher matcher;
+	
+	@BeforeClass
+	public static void setUp() throws Exception {
+		PhoneContact[] users = { theresia, alejandro, tala, paul, andre, 
+				joanna1, joanna2, stribb, rob, prince,
+				rob2, rob3, alex1, ellie };
+		matcher = new NameMatcher(Names.source(Arrays.asList(users)), 
+				new MatcherPreferences(true, false, false), 
+				Names.diminutives());
+	}
+	
+	// Cases that are known to fail:
+	// 
+	// test("von Daniken", tala);   -- von looks like a first name constraint
+	// test("Rob", rob);   -- first name match is ambiguous so we default to last name match, which is unlikely to be correct
+	// test("Alejandro -", alejandro);   -- a first name alone only matches contacts without a last name,
+	// test("Andrew", stribb);              the same goes for the rest of these
+	// test("Lex", alex1);
+	// test("Sandra", alex1);
+	// test("Paul", paul);   -- falls through to the exact last name match, Theresia Paul
+	// test("Dunlop,Paul", paul);   -- commas don't separate names
+	
+	@Test
+	public void basics() {
+		test("Paul Dunlop", paul);
+	}
+	
+	@Test
+	public void notWhitespaceSensitive() {
+		test("  Paul    Dunlop  ", paul);
+	}
+	
+	@Test
+	public void trailingDash() {
+		// Test hack for my address book
+		test("Alejandro Cuervo -", alejandro);
+	}
+	
+	@Test
+	public void bracketedText() {
+		test("Paul Dunlop (some dude)", paul);
+		test("(some dude) Paul Dunlop", paul);
+		test("    (some dude) Paul Dunlop  ", paul);
+		test("(whatever) Paul Dunlop (some dude)", paul);
+	}
+	
+	@Test
+	public void caseInsensitive() {
+		test("THERESIA PAUL", theresia);
+	}
+	
+	@Test
+	public void multipleHits() {
+		// Multiple hits == null (don't guess, we don't have enough info)
+		test("Joanna", null);
+	}
+	
+	@Test
+	public void unambiguousFirstName() {
+		test("Prince", prince);
+		// with first-name-only matches disabled
+		assertNull(matcher.match("Andrew", false));
+	}
+	
+	@Test
+	public void noMatch() {
+		test("Robert Nosuchname", null);
+		test("Nosuchname Cook", null);
+	}
+	
+	@Test
+	public void lastNameInitial() {
+		test("Joanna F", joanna1);
+		test("Joanna S", joanna2);
+		test("Bob C", rob);
+	}
+	
+	@Test
+	public void middleNamesIgnored() {
+		test("Tala Daniken", tala);
+	}
+	
+	@Test
+	public void sharedFirstName() {
+		// No match despite shared first name.
+		test("Paul Smith", null);
+	}
+	
+	@Test
+	public void exactLastName() {
+		test("Dunlop", paul);
+	}
+	
+	@Test
+	public void accentInsensitive() {
+		test("Andrea Beltran", andre);
+		// Truncated first name with accent insensitivity
+		test("Andre Beltran", andre);
+	}
+	
+	@Test
+	public void lastNameFirstName() {
+		test("Dunlop Paul", paul);
+		test("Dunlop P", paul);
+		test("Dunlop, P", paul);
+		test("Dunlop, Paul", paul);
+		test("P Dunlop", paul);
+	}
+	
+	@Test
+	public void diminutives() {
+		// short form in contacts
+		test("Lex One", alex1);
+		test("Sandra One", alex1);
+		test("Andy S", stribb);
+		// short form in Facebook
+		test("Eleanor Two", ellie);
+	}
+	
+	@Test
+	public void exactMatch() {
+		assertEquals(paul.id, matcher.exactMatch("paul dunlop").id);
+		assertEquals(andre.id, matcher.exactMatch("Andrea Beltran").id);
+		assertNull(matcher.exactMatch("Paul"));
+	}
+	
+	private static void test(String name, PhoneContact user) {
+		PhoneContact res = matcher.match(name, true);
+		if (user == null) {
+			assertNull(name, res);
+		} else {
+			assertEquals(name, user.id, res == null ? null : res.id);
+		}
+	}
+}
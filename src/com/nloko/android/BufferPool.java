@@ -0,0 +1,146 @@
+//
+//  BufferPool.java
+//
+//  Authors:
+// 		Neil Loknath <neil.loknath@gmail.com>
+//
+//  Copyright 2009 Neil Loknath
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); 
+//  you may not use this file except in compliance with the License. 
+//  You may obtain a copy of the License at 
+//
+//  http://www.apache.org/licenses/LICENSE-2.0 
+//
+//  Unless required by applicable law or agreed to in writing, software 
+//  distributed under the License is distributed on an "AS IS" BASIS, 
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+//  See the License for the specific language governing permissions and 
+//  limitations under the License. 
+//
+
+
+package com.nloko.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+// Hands out growable byte buffers for reading pictures and takes them back
+// once released, so reading thousands of pictures doesn't leave a trail of
+// short-lived arrays behind. A buffer that is never released is simply
+// garbage collected.
+public final class BufferPool {
+	private static final String TAG = "BufferPool";
+	
+	// used when the length of a stream isn't known
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+	
+	// the pool must stay small next to the 16-24MB heaps of older devices
+	private static final int MAX_POOL_BYTES = 2 * 1024 * 1024;
+	// anything bigger is left to the garbage collector
+	private static final int MAX_BUFFER_BYTES = 512 * 1024;
+	// a free array is only handed out for requests at least this fraction
+	// of its size, so small pictures don't pin large arrays
+	private static final int MAX_WASTE_RATIO = 4;
+	
+	private static final BufferPool mDefault = new BufferPool(MAX_POOL_BYTES, MAX_BUFFER_BYTES);
+	
+	private final ArrayList<byte[]> mFree = new ArrayList<byte[]>();
+	private final int mMaxBytes;
+	private final int mMaxBufferBytes;
+	private int mBytes = 0;
+	
+	public static BufferPool getDefault() {
+		return mDefault;
+	}
+	
+	public BufferPool(int maxBytes, int maxBufferBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes");
+		} else if (maxBufferBytes < 0) {
+			throw new IllegalArgumentException("maxBufferBytes");
+		}
+		
+		mMaxBytes = maxBytes;
+		mMaxBufferBytes = Math.min(maxBufferBytes, maxBytes);
+	}
+	
+	// Returns an empty buffer that can hold at least capacity bytes
+	// before it has to grow
+	public PooledBuffer acquire(int capacity) {
+		return new PooledBuffer(this, take(capacity > 0 ? capacity : DEFAULT_CAPACITY));
+	}
+	
+	// Reads the stream to the end into a buffer. lengthHint is the expected
+	// length of the stream, such as its Content-Length, or 0 if unknown.
+	// The stream is not closed.
+	public PooledBuffer read(InputStream is, long lengthHint) throws IOException {
+		if (is == null) {
+			throw new IllegalArgumentException("is");
+		}
+		
+		int capacity = lengthHint > 0 && lengthHint < Integer.MAX_VALUE ? (int) lengthHint + 1 : DEFAULT_CAPACITY;
+		PooledBuffer buffer = acquire(capacity);
+		try {
+			buffer.readFrom(is);
+		} catch (IOException e) {
+			buffer.release();
+			throw e;
+		}
+		
+		return buffer;
+	}
+	
+	// Lets go of every free array, e.g. once a sync is over
+	public synchronized void trim() {
+		mFree.clear();
+		mBytes = 0;
+	}
+	
+	// the smallest free array that fits without wasting too much of it
+	private synchronized byte[] take(int capacity) {
+		long maxLength = (long) capacity * MAX_WASTE_RATIO;
+		int best = -1;
+		for (int i = 0; i < mFree.size(); i++) {
+			int length = mFree.get(i).length;
+			if (length >= capacity && length <= maxLength 
+					&& (best < 0 || length < mFree.get(best).length)) {
+				best = i;
+			}
+		}
+		
+		if (best >= 0) {
+			byte[] bytes = mFree.remove(best);
+			mBytes -= bytes.length;
+			return bytes;
+		}
+		
+		return new byte[capacity];
+	}
+	
+	synchronized void recycle(byte[] bytes) {
+		if (bytes == null || bytes.length > mMaxBufferBytes) {
+			return;
+		}
+		
+		// keep the larger arrays, they are the expensive ones
+		while (mBytes + bytes.length > mMaxBytes) {
+			int smallest = 0;
+			for (int i = 1; i < mFree.size(); i++) {
+				if (mFree.get(i).length < mFree.get(smallest).length) {
+					smallest = i;
+				}
+			}
+			
+			if (mFree.get(smallest).length >= bytes.length) {
+				return;
+			}
+			mBytes -= mFree.remove(smallest).length;
+		}
+		
+		mFree.add(bytes);
+		mBytes += bytes.length;
+		Log.v(TAG, String.format("%d buffers pooled, %d bytes", mFree.size(), mBytes));
+	}
+}
@@ -0,0 +1,62 @@
+//
+//  CenterCrop.java
+//
+//  Authors:
+// 		Neil Loknath <neil.loknath@gmail.com>
+//
+//  Copyright 2009 Neil Loknath
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); 
+//  you may not use this file except in compliance with the License. 
+//  You may obtain a copy of the License at 
+//
+//  http://www.apache.org/licenses/LICENSE-2.0 
+//
+//  Unless required by applicable law or agreed to in writing, software 
+//  distributed under the License is distributed on an "AS IS" BASIS, 
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+//  See the License for the specific language governing permissions and 
+//  limitations under the License. 
+//
+
+package com.nloko.android;
+
+// The geometry of Utils.centerCrop: the part of the source that is drawn,
+// and the size it is scaled to. The source is scaled so its shorter side
+// fits the destination, but never up. Plain Java, so the benchmarks can 
+// use it off the device.
+public final class CenterCrop {
+	public final int width;
+	public final int height;
+	public final int outWidth;
+	public final int outHeight;
+	public final int left;
+	public final int top;
+	public final int srcWidth;
+	public final int srcHeight;
+	
+	public CenterCrop(int width, int height, int destWidth, int destHeight)
+	{
+		if (width < 1 || height < 1) {
+			throw new IllegalArgumentException("width and height must be positive");
+		}
+		
+		this.width = width;
+		this.height = height;
+		float scale = Math.min(1f, Math.max((float) destWidth / width, (float) destHeight / height));
+		
+		outWidth = Math.min(destWidth, Math.round(width * scale));
+		outHeight = Math.min(destHeight, Math.round(height * scale));
+		
+		srcWidth = Math.min(width, Math.round(outWidth / scale));
+		srcHeight = Math.min(height, Math.round(outHeight / scale));
+		left = (width - srcWidth) / 2;
+		top = (height - srcHeight) / 2;
+	}
+	
+	// true when the source already is the result
+	public boolean isWhole()
+	{
+		return outWidth == width && outHeight == height;
+	}
+}
@@ -21,17 +21,28 @@
 
 package com.nloko.android;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.Writer;
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -43,10 +54,27 @@ import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Process;
 
+// Keeps downloaded pictures on external storage, up to mMaxBytes.
+//
+// The index of cached pictures lives in an append-only journal next to them,
+// one line per add, read or delete, so it doesn't take a scan of the
+// directory to know what's cached and how big it is. The journal is 
+// replayed the first time the cache is used after starting or after the
+// storage was remounted, and rewritten once it grows too far beyond the
+// number of pictures it describes.
+//
+// Only one PhotoCache may use the directory, as each keeps its own index
+// and journal writer. getInstance() is the only way to get one.
+//
+// In content addressed mode, pictures are stored under the MD5 of their
+// bytes and the journal maps each key to the picture it was added with. 
+// Keys can then be anything, such as the full url, and pictures shared 
+// by several keys, like default avatars, are only stored once.
 public class PhotoCache {
 	// this location is important, as it allows automatic removal when the app is
 	// uninstalled
 	public static final String NO_MEDIA = ".nomedia";
+	public static final String JOURNAL = "journal";
 	public long mMaxBytes = 5000000;
 	
 	private static final String TAG = "PhotoCache";
@@ -54,7 +82,20 @@ public class PhotoCache {
 	private static final int DELETE = 2;
 	private static final int ADD = 3;
 	private static final int SHUTDOWN = 4;
+	private static final int READ = 5;
+	private static final int STORAGE_CHANGED = 6;
+	private static final int LOAD = 7;
+	
+	private static final String JOURNAL_TMP = "journal.tmp";
+	private static final String JOURNAL_ADD = "ADD";
+	private static final String JOURNAL_READ = "READ";
+	private static final String JOURNAL_DELETE = "DEL";
+	private static final String JOURNAL_KEY = "KEY";
+	// how many lines the journal may have beyond one per picture before 
+	// it is rewritten
+	private static final int JOURNAL_SLACK_LINES = 500;
 	
+	// Deletes the least or most recently used pictures first
 	public static final int DELETE_OLDEST = 0;
 	public static final int DELETE_NEWEST = 1;
 		
@@ -64,32 +105,86 @@ public class PhotoCache {
 	private boolean mExternalStorageWriteable;
 	private File mPath;
 	
-	private final TreeMap<Long, List<String>> mPhotos = new TreeMap<Long, List<String>>();
+	// sizes of the cached pictures, least recently used first
+	private final LinkedHashMap<String, Long> mPhotos = new LinkedHashMap<String, Long>(64, 0.75f, true);
 	private long mSize = 0;
-	private boolean mSized = false;
+	private boolean mLoaded = false;
+	private Writer mJournal;
+	private int mJournalLines = 0;
 	private int mDeleteOrder = DELETE_OLDEST;
 	
+	private volatile boolean mContentAddressed = false;
+	// the picture each key was added with, in content addressed mode.
+	// get() reads it from the caller's thread, so access is synchronized on it.
+	private final HashMap<String, String> mKeys = new HashMap<String, String>();
+	
+	private final AtomicInteger mHits = new AtomicInteger();
+	private final AtomicInteger mMisses = new AtomicInteger();
+	private int mDeduplicated = 0;
+	
 	private final AsyncHandler mHandler;
-	private PhotoCacheListener mListener;
+	private volatile PhotoCacheListener mListener;
+	
+	// Fetches a picture that isn't cached, or returns null if there is none
+	public interface Loader {
+		PooledBuffer load(String key) throws IOException;
+	}
+	
+	// Downloads the picture at the url the key is
+	public static final Loader URL_LOADER = new Loader() {
+		public PooledBuffer load(String url) throws IOException {
+			InputStream is = Utils.downloadPictureAsStream(url);
+			if (is == null) {
+				return null;
+			}
+			
+			try {
+				return BufferPool.getDefault().read(is, 0);
+			} finally {
+				is.close();
+			}
+		}
+	};
+	
+	// A getOrFetch in progress, which other callers for the same key wait on
+	private static final class Fetch {
+		public final CountDownLatch done = new CountDownLatch(1);
+		public int waiters = 0;
+		public PooledBuffer result;
+		public IOException error;
+	}
+	
+	private final HashMap<String, Fetch> mFetches = new HashMap<String, Fetch>();
 	
-	public PhotoCache(Context context, long maxBytes) {
-		this(context);
-		mMaxBytes = maxBytes;
+	private static PhotoCache mInstance;
+	
+	// The one cache of the process. The sync and the results screen share
+	// it, so getOrFetch coalesces their fetches and only one journal is
+	// ever open on the directory. It lives as long as the process does.
+	public static synchronized PhotoCache getInstance(Context context) {
+		if (mInstance == null) {
+			mInstance = new PhotoCache(context.getApplicationContext());
+			mInstance.setContentAddressed(true);
+		}
+		return mInstance;
 	}
 	
-	public PhotoCache(Context context) {
+	private PhotoCache(Context context) {
 		if (context == null) {
 			throw new IllegalArgumentException("context");
 		}
 		
 		mContext = new WeakReference<Context>(context);
 		mPath = context.getExternalCacheDir();
-		startWatchingExternalStorage();
 		
 		HandlerThread thread = new HandlerThread("PhotoCacheThread", 
 				Process.THREAD_PRIORITY_BACKGROUND);
 		thread.start();
 		mHandler = new AsyncHandler(thread);
+		
+		startWatchingExternalStorage();
+		// so keys resolve before the first add
+		mHandler.sendEmptyMessage(LOAD);
 	}
 	
 	public void setDeleteOrder(int order) {
@@ -98,11 +193,25 @@ public class PhotoCache {
 		}
 	}
 	
+	// Set before the cache is used
+	public void setContentAddressed(boolean value) {
+		mContentAddressed = value;
+	}
+	
 	public void setListener(PhotoCacheListener listener) {
 		mListener = listener;
 	}
 	
 	public void delete(String name) {
+		if (mContentAddressed && name != null) {
+			synchronized (mKeys) {
+				String file = mKeys.get(name);
+				if (file != null) {
+					name = file;
+				}
+			}
+		}
+		
 		Message msg = mHandler.obtainMessage();
 		msg.what = DELETE;
 		msg.obj = name;
@@ -123,18 +232,161 @@ public class PhotoCache {
 	}
 	
 	public InputStream get(String file) {
+		return get(file, true);
+	}
+	
+	// count is false for lookups that repeat one already counted
+	private InputStream get(String file, boolean count) {
 		if (file == null) {
 			return null;
 		}
 		
+		if (mContentAddressed) {
+			synchronized (mKeys) {
+				file = mKeys.get(file);
+			}
+			if (file == null) {
+				if (count) {
+					mMisses.incrementAndGet();
+				}
+				return null;
+			}
+		}
+		
 		File path = new File(mPath, file);
 		try {
-			return new FileInputStream(path.getAbsolutePath());
+			InputStream is = new FileInputStream(path.getAbsolutePath());
+			if (count) {
+				mHits.incrementAndGet();
+			}
+			
+			Message msg = mHandler.obtainMessage();
+			msg.what = READ;
+			msg.obj = file;
+			mHandler.sendMessage(msg);
+			
+			return is;
 		} catch (FileNotFoundException e) {}
 		
+		if (count) {
+			mMisses.incrementAndGet();
+		}
 		return null;
 	}
 	
+	// Like get(), but reads the picture into a buffer the caller must release
+	public PooledBuffer getBuffer(String file) throws IOException {
+		return getBuffer(file, true);
+	}
+	
+	private PooledBuffer getBuffer(String file, boolean count) throws IOException {
+		InputStream is = get(file, count);
+		if (is == null) {
+			return null;
+		}
+		
+		try {
+			return BufferPool.getDefault().read(is, is.available());
+		} finally {
+			is.close();
+		}
+	}
+	
+	// Returns the cached picture, or fetches it with the loader and caches it
+	// before returning. Concurrent calls for the same key share one fetch,
+	// and the picture is readable from the cache by the time any of them
+	// returns. The caller must release the returned buffer.
+	public PooledBuffer getOrFetch(String key, Loader loader) throws IOException {
+		if (key == null) {
+			throw new IllegalArgumentException("key");
+		} else if (loader == null) {
+			throw new IllegalArgumentException("loader");
+		}
+		
+		while (true) {
+			PooledBuffer cached = getBuffer(key);
+			if (cached != null) {
+				return cached;
+			}
+			
+			Fetch fetch;
+			boolean owner = false;
+			synchronized (mFetches) {
+				fetch = mFetches.get(key);
+				if (fetch == null) {
+					fetch = new Fetch();
+					mFetches.put(key, fetch);
+					owner = true;
+				} else {
+					fetch.waiters++;
+				}
+			}
+			
+			if (owner) {
+				return fetch(key, loader, fetch);
+			}
+			
+			try {
+				fetch.done.await();
+			} catch (InterruptedException e) {
+				synchronized (mFetches) {
+					if (mFetches.get(key) == fetch) {
+						// still running, so the owner mustn't retain for us
+						fetch.waiters--;
+					} else if (fetch.result != null) {
+						// already retained for us
+						fetch.result.release();
+					}
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			
+			if (fetch.error != null) {
+				throw fetch.error;
+			} else if (fetch.result != null) {
+				return fetch.result;
+			}
+			// The other fetch found nothing, which may be down to its loader,
+			// so try ours
+		}
+	}
+	
+	private PooledBuffer fetch(String key, Loader loader, Fetch fetch) throws IOException {
+		PooledBuffer result = null;
+		IOException error = null;
+		try {
+			// another fetch may have finished between our miss and now,
+			// which was counted already
+			result = getBuffer(key, false);
+			if (result == null) {
+				result = loader.load(key);
+				if (result != null) {
+					// written right here rather than on the cache's thread, so the
+					// picture is there for the next get()
+					mHandler.add(key, result.getBytes(), result.getLength());
+				}
+			}
+			
+			return result;
+		} catch (IOException e) {
+			error = e;
+			throw e;
+		} finally {
+			synchronized (mFetches) {
+				mFetches.remove(key);
+				fetch.result = result;
+				fetch.error = error;
+				if (result != null) {
+					for (int i = 0; i < fetch.waiters; i++) {
+						result.retain();
+					}
+				}
+			}
+			fetch.done.countDown();
+		}
+	}
+	
 	public void add(String file, byte[] b) {
 		Message msg = mHandler.obtainMessage();
 		msg.what = ADD;
@@ -142,11 +394,25 @@ public class PhotoCache {
 		mHandler.sendMessage(msg);
 	}
 	
+	// The buffer is retained until it has been written, so the caller
+	// can release its own reference right away
+	public void add(String file, PooledBuffer buffer) {
+		Message msg = mHandler.obtainMessage();
+		msg.what = ADD;
+		msg.obj = new Photo(file, buffer.retain());
+		mHandler.sendMessage(msg);
+	}
+	
 	private boolean isNoMedia(File f) {
 		if (f == null) return false;
 		return f.getName().equals(NO_MEDIA) && f.length() == 0;
 	}
 	
+	private boolean isJournal(File f) {
+		if (f == null) return false;
+		return f.getName().equals(JOURNAL) || f.getName().equals(JOURNAL_TMP);
+	}
+	
 	private void startWatchingExternalStorage() {
 		Context context = mContext.get();
 		if (context == null) {
@@ -159,6 +425,8 @@ public class PhotoCache {
 	        public void onReceive(Context context, Intent intent) {
 	            Log.d(TAG, "Storage: " + intent.getData());
 	            updateExternalStorageState();
+	            // the journal has to be read again from whatever is mounted now
+	            mHandler.sendEmptyMessage(STORAGE_CHANGED);
 	        }
 	    };
 	    IntentFilter filter = new IntentFilter();
@@ -209,66 +477,365 @@ public class PhotoCache {
 			}
 		}
 		
-		private synchronized void resize() {
-			Log.d(TAG, String.format("resize() map size %d", mPhotos.size()));
-			// delete the oldest in the cache
-			while (!mPhotos.isEmpty() && mSize > mMaxBytes) {
-				long key;
-				if (mDeleteOrder == DELETE_OLDEST) {
-					key = mPhotos.firstKey();
-				} else {
-					key = mPhotos.lastKey();
-				}
-				for(String name : mPhotos.get(key)) {
-					delete(name);
-					Log.v(TAG, String.format("resize() %d", mSize));
+		// Reads the index from the journal, or from the directory if there
+		// is no usable journal yet
+		private synchronized void ensureLoaded() {
+			if (mLoaded || !mExternalStorageAvailable || mPath == null) {
+				return;
+			}
+			
+			mPhotos.clear();
+			mSize = 0;
+			mJournalLines = 0;
+			clearKeys();
+			
+			if (!readJournal()) {
+				mPhotos.clear();
+				mSize = 0;
+				// keys can't be recovered from the directory
+				clearKeys();
+				scanDirectory();
+				rewriteJournal();
+			} else if (mJournalLines > mPhotos.size() + getKeyCount() + JOURNAL_SLACK_LINES) {
+				rewriteJournal();
+			} else {
+				openJournal();
+			}
+			
+			mLoaded = true;
+			Log.d(TAG, String.format("loaded %d photos, %d bytes", mPhotos.size(), mSize));
+			resize();
+		}
+		
+		private synchronized boolean readJournal() {
+			File journal = new File(mPath, JOURNAL);
+			if (!journal.exists()) {
+				return false;
+			}
+			
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new FileReader(journal));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!replay(line)) {
+						Log.w(TAG, "corrupt journal line " + line);
+						return false;
+					}
+					mJournalLines++;
 				}
 				
-				mPhotos.remove(key);
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			} finally {
+				try {
+					if (reader != null) {
+						reader.close();
+					}
+				} catch (IOException e) {}
 			}
 		}
 		
-		private synchronized void calculateSize() {
-			if (!mExternalStorageAvailable) {
-				return;
+		// ADD <size> <name>, READ <name>, DEL <name> or KEY <name> <key>
+		private synchronized boolean replay(String line) {
+			int space = line.indexOf(' ');
+			if (space < 0) {
+				return false;
 			}
 			
-			mSized = true;
+			String op = line.substring(0, space);
+			if (JOURNAL_ADD.equals(op)) {
+				int sizeEnd = line.indexOf(' ', space + 1);
+				if (sizeEnd < 0) {
+					return false;
+				}
+				
+				long size;
+				try {
+					size = Long.parseLong(line.substring(space + 1, sizeEnd));
+				} catch (NumberFormatException e) {
+					return false;
+				}
+				
+				String name = line.substring(sizeEnd + 1);
+				Long old = mPhotos.remove(name);
+				if (old != null) {
+					mSize -= old;
+				}
+				mPhotos.put(name, size);
+				mSize += size;
+			} else if (JOURNAL_READ.equals(op)) {
+				mPhotos.get(line.substring(space + 1));
+			} else if (JOURNAL_DELETE.equals(op)) {
+				String name = line.substring(space + 1);
+				Long old = mPhotos.remove(name);
+				if (old != null) {
+					mSize -= old;
+				}
+				removeKeys(name);
+			} else if (JOURNAL_KEY.equals(op)) {
+				int nameEnd = line.indexOf(' ', space + 1);
+				if (nameEnd < 0) {
+					return false;
+				}
+				
+				String name = line.substring(space + 1, nameEnd);
+				if (mPhotos.containsKey(name)) {
+					synchronized (mKeys) {
+						mKeys.put(line.substring(nameEnd + 1), name);
+					}
+				}
+			} else {
+				return false;
+			}
+			
+			return true;
+		}
+		
+		// Only happens when there's no journal, such as the first time after
+		// upgrading. Files are taken as used in the order they were written.
+		private synchronized void scanDirectory() {
 			File[] files = mPath.listFiles();
 			if (files == null) {
 				return;
 			}
 			
+			Arrays.sort(files, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long diff = a.lastModified() - b.lastModified();
+					return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+				}
+			});
+			
 			for(File f : files) {
-				updateSize(f);
+				if (f.isFile() && !isNoMedia(f) && !isJournal(f)) {
+					mPhotos.put(f.getName(), f.length());
+					mSize += f.length();
+				}
 			}
 		}
-
-		private synchronized void updateSize(File f) {
-			long modified = f.lastModified();
-			if (!mPhotos.containsKey(modified)) {
-				mPhotos.put(modified, new ArrayList<String>());
+		
+		private synchronized void openJournal() {
+			closeJournal();
+			if (!mExternalStorageWriteable) {
+				return;
 			}
 			
-			mPhotos.get(modified).add(f.getName());
-			mSize += f.length();
-			Log.d(TAG, String.format("updateSize() %d", mSize));
-			resize();
+			try {
+				ensurePath();
+				mJournal = new BufferedWriter(new FileWriter(new File(mPath, JOURNAL), true));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		private synchronized void closeJournal() {
+			if (mJournal == null) {
+				return;
+			}
+			
+			try {
+				mJournal.close();
+			} catch (IOException e) {}
+			mJournal = null;
+		}
+		
+		// Replaces the journal with one ADD per picture, in the order they were used
+		private synchronized void rewriteJournal() {
+			closeJournal();
+			if (!mExternalStorageWriteable) {
+				return;
+			}
+			
+			File tmp = new File(mPath, JOURNAL_TMP);
+			Writer writer = null;
+			try {
+				ensurePath();
+				writer = new BufferedWriter(new FileWriter(tmp, false));
+				for (Map.Entry<String, Long> entry : mPhotos.entrySet()) {
+					writer.write(JOURNAL_ADD + " " + entry.getValue() + " " + entry.getKey() + "\n");
+				}
+				int keys = 0;
+				synchronized (mKeys) {
+					for (Map.Entry<String, String> entry : mKeys.entrySet()) {
+						writer.write(JOURNAL_KEY + " " + entry.getValue() + " " + entry.getKey() + "\n");
+					}
+					keys = mKeys.size();
+				}
+				writer.close();
+				writer = null;
+				
+				if (!tmp.renameTo(new File(mPath, JOURNAL))) {
+					Log.w(TAG, "could not replace journal");
+				}
+				mJournalLines = mPhotos.size() + keys;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					if (writer != null) {
+						writer.close();
+					}
+				} catch (IOException e) {}
+			}
+			
+			openJournal();
+		}
+		
+		private synchronized void appendJournal(String line) {
+			if (mJournal == null) {
+				return;
+			}
+			
+			try {
+				mJournal.write(line);
+				mJournal.write('\n');
+				mJournal.flush();
+				mJournalLines++;
+			} catch (IOException e) {
+				e.printStackTrace();
+				closeJournal();
+				return;
+			}
+			
+			if (mJournalLines > mPhotos.size() + getKeyCount() + JOURNAL_SLACK_LINES) {
+				rewriteJournal();
+			}
+		}
+		
+		private int getKeyCount() {
+			synchronized (mKeys) {
+				return mKeys.size();
+			}
+		}
+		
+		private void clearKeys() {
+			synchronized (mKeys) {
+				mKeys.clear();
+			}
+		}
+		
+		// forgets every key that leads to the picture
+		private void removeKeys(String name) {
+			synchronized (mKeys) {
+				Iterator<String> names = mKeys.values().iterator();
+				while (names.hasNext()) {
+					if (name.equals(names.next())) {
+						names.remove();
+					}
+				}
+			}
+		}
+		
+		// The listener is always called from the cache's thread, although
+		// getOrFetch adds, and so evicts, on the caller's thread
+		private void notifyListener(final Runnable call) {
+			if (mListener == null) {
+				return;
+			}
+			
+			if (Thread.currentThread() == getLooper().getThread()) {
+				call.run();
+			} else {
+				post(call);
+			}
+		}
+		
+		private synchronized void notifyUsage() {
+			final int hits = mHits.get();
+			final int misses = mMisses.get();
+			final int deduplicated = mDeduplicated;
+			final int photos = mPhotos.size();
+			final long size = mSize;
+			notifyListener(new Runnable() {
+				public void run() {
+					PhotoCacheListener listener = mListener;
+					if (listener != null) {
+						listener.onUsage(hits, misses, deduplicated, photos, size);
+					}
+				}
+			});
+		}
+		
+		private void notifyDeleted(final String name) {
+			notifyListener(new Runnable() {
+				public void run() {
+					PhotoCacheListener listener = mListener;
+					if (listener != null) {
+						listener.onDeleted(name);
+					}
+				}
+			});
+		}
+		
+		private void notifyAdded(final String name) {
+			notifyListener(new Runnable() {
+				public void run() {
+					PhotoCacheListener listener = mListener;
+					if (listener != null) {
+						listener.onAdded(name);
+					}
+				}
+			});
+		}
+		
+		private synchronized void resize() {
+			Log.d(TAG, String.format("resize() map size %d", mPhotos.size()));
+			// nothing can be deleted until the storage is writable again
+			if (!mExternalStorageWriteable) {
+				return;
+			}
+			
+			while (!mPhotos.isEmpty() && mSize > mMaxBytes) {
+				String name = null;
+				Iterator<String> names = mPhotos.keySet().iterator();
+				if (mDeleteOrder == DELETE_OLDEST) {
+					name = names.next();
+				} else {
+					while (names.hasNext()) {
+						name = names.next();
+					}
+				}
+				
+				delete(name);
+				// the storage went read-only under us
+				if (mPhotos.containsKey(name)) {
+					break;
+				}
+				Log.v(TAG, String.format("resize() %d", mSize));
+			}
+		}
+		
+		private synchronized void read(String name) {
+			ensureLoaded();
+			if (name != null && mPhotos.get(name) != null) {
+				appendJournal(JOURNAL_READ + " " + name);
+			}
+			notifyUsage();
 		}
 
 		private synchronized void delete(String name) {
 			if (!mExternalStorageWriteable || name == null) {
 				return;
 			}
+			ensureLoaded();
 			
 			File f = new File(mPath, name);
-			if (!isNoMedia(f) && f.exists()) {
-				mSize -= f.length();
-				f.delete();
-				if (mListener != null) {
-					mListener.onDeleted(name);
+			if (!isNoMedia(f) && !isJournal(f)) {
+				removeKeys(name);
+				Long size = mPhotos.remove(name);
+				if (size != null) {
+					mSize -= size;
+					appendJournal(JOURNAL_DELETE + " " + name);
+				}
+				
+				if (f.exists()) {
+					f.delete();
+					notifyDeleted(name);
+					Log.d(TAG, String.format("delete() deleted %s", name));
 				}
-				Log.d(TAG, String.format("delete() deleted %s", name));
 			}
 		}
 	
@@ -279,14 +846,19 @@ public class PhotoCache {
 			}
 			
 			for(File f : files) {
-				if (mExternalStorageWriteable && !isNoMedia(f)) {
-					if (mSized) {
-						mSize -= f.length();
-					}
+				if (mExternalStorageWriteable && !isNoMedia(f) && !isJournal(f)) {
 					f.delete();
 				}
 			}
 			
+			if (mExternalStorageWriteable) {
+				mPhotos.clear();
+				mSize = 0;
+				clearKeys();
+				rewriteJournal();
+				mLoaded = true;
+			}
+			
 			if (mListener != null) {
 				mListener.onAllDeleted();
 			}
@@ -296,16 +868,37 @@ public class PhotoCache {
 			if (bytes == null) {
 				throw new IllegalArgumentException("bytes");
 			}
+			
+			add(file, bytes, bytes.length);
+		}
+		
+		private synchronized void add(String file, byte[] bytes, int length) {
+			if (bytes == null) {
+				throw new IllegalArgumentException("bytes");
+			}
 			if (file == null) {
 				throw new IllegalArgumentException("file");
 			}
+			// a name has to fit on one journal line
+			if (file.indexOf('\n') >= 0 || file.indexOf('\r') >= 0) {
+				return;
+			}
+			
+			ensureLoaded();
 			
-			if (!mSized) {
-				calculateSize();
+			String key = file;
+			if (mContentAddressed) {
+				file = Utils.getMd5Hash(bytes, 0, length);
+				if (file == null) {
+					return;
+				}
 			}
 			
 			File photo = new File(mPath, file);
-			if (photo.exists()) {
+			if (mPhotos.containsKey(file) && photo.exists()) {
+				if (mContentAddressed) {
+					addKey(key, file, true);
+				}
 				return;
 			}
 			
@@ -313,13 +906,23 @@ public class PhotoCache {
 				try {
 					ensurePath();
 					OutputStream os = new FileOutputStream(photo);
-					os.write(bytes);
+					os.write(bytes, 0, length);
 					os.close();
-					updateSize(photo);
 					
-					if (mListener != null) {
-						mListener.onAdded(file);
+					Long old = mPhotos.put(file, (long) length);
+					if (old != null) {
+						mSize -= old;
 					}
+					mSize += length;
+					appendJournal(JOURNAL_ADD + " " + length + " " + file);
+					if (mContentAddressed) {
+						addKey(key, file, false);
+					}
+					Log.d(TAG, String.format("add() %d", mSize));
+					resize();
+					
+					notifyAdded(key);
+					notifyUsage();
 				} catch (FileNotFoundException e) {
 					e.printStackTrace();
 				} catch (IOException e) {
@@ -328,6 +931,21 @@ public class PhotoCache {
 			}
 		}
 		
+		private synchronized void addKey(String key, String name, boolean duplicate) {
+			synchronized (mKeys) {
+				if (name.equals(mKeys.put(key, name))) {
+					return;
+				}
+			}
+			
+			appendJournal(JOURNAL_KEY + " " + name + " " + key);
+			if (duplicate) {
+				mDeduplicated++;
+				Log.d(TAG, String.format("add() %s is already stored as %s", key, name));
+				notifyUsage();
+			}
+		}
+		
 		@Override
 		public void handleMessage(Message msg) {
 			super.handleMessage(msg);
@@ -335,10 +953,24 @@ public class PhotoCache {
 			switch(msg.what) {
 			case ADD:
 				Photo p = (Photo)msg.obj;
-				if (p != null) {
+				if (p != null && p.buffer != null) {
+					try {
+						add(p.file, p.buffer.getBytes(), p.buffer.getLength());
+					} finally {
+						p.buffer.release();
+					}
+				} else if (p != null) {
 					add(p.file, p.bytes);
 				}
 				break;
+			case READ:
+				read((String)msg.obj);
+				break;
+				
+			case LOAD:
+				ensureLoaded();
+				break;
+				
 			case DELETE_ALL:
 				deleteAll();
 				break;
@@ -346,8 +978,14 @@ public class PhotoCache {
 			case DELETE:
 				delete((String)msg.obj);
 				break;
+				
+			case STORAGE_CHANGED:
+				closeJournal();
+				mLoaded = false;
+				break;
 
 			case SHUTDOWN:
+				closeJournal();
 				stopWatchingExternalStorage();
 				getLooper().quit();
 				break;
@@ -358,10 +996,16 @@ public class PhotoCache {
 	private static final class Photo {
 		public String file;
 		public byte[] bytes;
+		public PooledBuffer buffer;
 		
 		public Photo(String f, byte[] b) {
 			file = f;
 			bytes = b;
 		}
+		
+		public Photo(String f, PooledBuffer b) {
+			file = f;
+			buffer = b;
+		}
 	}
 }
@@ -21,8 +21,13 @@
 
 package com.nloko.android;
 
+// Every call comes from the cache's thread, whichever thread used the cache
 public interface PhotoCacheListener {
 	void onDeleted(String name);
 	void onAllDeleted();
 	void onAdded(String name);
+	// Called as the cache is used. hits and misses
+	// count get() calls since the cache was created, deduplicated counts 
+	// adds that found the same picture already stored.
+	void onUsage(int hits, int misses, int deduplicated, int photos, long bytes);
 }
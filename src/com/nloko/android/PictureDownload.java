@@ -0,0 +1,45 @@
+//
+//  PictureDownload.java
+//
+//  Authors:
+// 		Neil Loknath <neil.loknath@gmail.com>
+//
+//  Copyright 2009 Neil Loknath
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); 
+//  you may not use this file except in compliance with the License. 
+//  You may obtain a copy of the License at 
+//
+//  http://www.apache.org/licenses/LICENSE-2.0 
+//
+//  Unless required by applicable law or agreed to in writing, software 
+//  distributed under the License is distributed on an "AS IS" BASIS, 
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+//  See the License for the specific language governing permissions and 
+//  limitations under the License. 
+//
+
+
+package com.nloko.android;
+
+import java.io.InputStream;
+
+// The response to a picture download. When the request carried validators
+// and the picture hasn't changed, there is no stream to read.
+public final class PictureDownload {
+	public final InputStream stream;
+	public final boolean notModified;
+	public final String etag;
+	public final String lastModified;
+	// the Content-Length, or -1 if unknown
+	public final long length;
+	
+	public PictureDownload(InputStream stream, boolean notModified, String etag, String lastModified, long length)
+	{
+		this.stream = stream;
+		this.length = length;
+		this.notModified = notModified;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+}
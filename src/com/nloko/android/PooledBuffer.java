@@ -0,0 +1,109 @@
+//
+//  PooledBuffer.java
+//
+//  Authors:
+// 		Neil Loknath <neil.loknath@gmail.com>
+//
+//  Copyright 2009 Neil Loknath
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); 
+//  you may not use this file except in compliance with the License. 
+//  You may obtain a copy of the License at 
+//
+//  http://www.apache.org/licenses/LICENSE-2.0 
+//
+//  Unless required by applicable law or agreed to in writing, software 
+//  distributed under the License is distributed on an "AS IS" BASIS, 
+//  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+//  See the License for the specific language governing permissions and 
+//  limitations under the License. 
+//
+
+
+package com.nloko.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// A growable byte buffer borrowed from a BufferPool. The bytes are exposed
+// directly rather than copied, so they are only valid up to getLength()
+// and until the buffer is released.
+//
+// Every holder that needs the bytes past the current call retains the
+// buffer and releases it when done. It goes back to the pool when the
+// last holder lets go.
+public final class PooledBuffer {
+	private final BufferPool mPool;
+	private byte[] mBytes;
+	private int mLength = 0;
+	private int mRefs = 1;
+	
+	PooledBuffer(BufferPool pool, byte[] bytes) {
+		mPool = pool;
+		mBytes = bytes;
+	}
+	
+	public synchronized byte[] getBytes() {
+		if (mBytes == null) {
+			throw new IllegalStateException("buffer was released");
+		}
+		
+		return mBytes;
+	}
+	
+	public synchronized int getLength() {
+		return mLength;
+	}
+	
+	// Appends the rest of the stream, growing the buffer as needed
+	public synchronized void readFrom(InputStream is) throws IOException {
+		if (is == null) {
+			throw new IllegalArgumentException("is");
+		}
+		
+		byte[] bytes = getBytes();
+		int read;
+		while ((read = is.read(bytes, mLength, bytes.length - mLength)) != -1) {
+			mLength += read;
+			if (mLength == bytes.length) {
+				byte[] grown = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, grown, 0, mLength);
+				mBytes = bytes = grown;
+			}
+		}
+	}
+	
+	// A stream over the bytes, without copying them
+	public synchronized InputStream newInputStream() {
+		return new ByteArrayInputStream(getBytes(), 0, mLength);
+	}
+	
+	// A copy of the bytes, for holders that outlive the buffer
+	public synchronized byte[] toByteArray() {
+		byte[] copy = new byte[mLength];
+		System.arraycopy(getBytes(), 0, copy, 0, mLength);
+		return copy;
+	}
+	
+	public synchronized PooledBuffer retain() {
+		getBytes();
+		mRefs++;
+		return this;
+	}
+	
+	public void release() {
+		byte[] bytes;
+		synchronized (this) {
+			if (mBytes == null || --mRefs > 0) {
+				return;
+			}
+			
+			bytes = mBytes;
+			mBytes = null;
+			mLength = 0;
+		}
+		
+		mPool.recycle(bytes);
+	}
+}
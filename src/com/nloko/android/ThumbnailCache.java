@@ -21,38 +21,109 @@
 
 package com.nloko.android;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Bitmap.CompressFormat;
 
 public class ThumbnailCache {
 
 	private final String TAG = "ThumbnailCache";
-	// use SoftReference so Android can free memory, if needed
+	// Holds the thumbnails strongly, least recently used first, within a byte
+	// budget; soft references were cleared so eagerly that thumbnails were
+	// decoded over and over.
 	// ThumbnailCache can notify if a download is required or use the built-in 
 	// ImageDownloader
 	// See setImageListener and setImageProvider
 	
-	private final Map <String, SoftReference<Bitmap>> mImages = new HashMap <String, SoftReference<Bitmap>> ();
+	public static final int THUMBNAIL_SIZE = 44;
+	// a few hundred thumbnails
+	public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+	
+	private final LinkedHashMap<String, Bitmap> mImages = new LinkedHashMap<String, Bitmap>(32, 0.75f, true);
 	
 	private final Object lock = new Object();
 	
+	private int mMaxBytes = DEFAULT_MAX_BYTES;
+	private int mBytes = 0;
+	private int mHits = 0;
+	private int mMisses = 0;
+	private int mEvictions = 0;
+	
 	private Bitmap mDefaultImage = null;
 	private ImageListener mListener = null;
 	private ImageProvider mProvider = null;
+	private volatile ImageLoader mLoader = null;
 	private final ImageDownloader mDownloader = new ImageDownloader(this);
 	
+	// A budget of a sixteenth of the memory the system gives the app
+	public static int getDefaultMaxBytes(Context context)
+	{
+		ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		if (am == null) {
+			return DEFAULT_MAX_BYTES;
+		}
+		
+		return am.getMemoryClass() * 1024 * 1024 / 16;
+	}
+	
+	public void setMaxBytes(int maxBytes)
+	{
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes");
+		}
+		
+		synchronized(lock) {
+			mMaxBytes = maxBytes;
+			trimTo(maxBytes);
+		}
+	}
+	
+	public int getMaxBytes()
+	{
+		synchronized(lock) {
+			return mMaxBytes;
+		}
+	}
+	
+	public int getBytes()
+	{
+		synchronized(lock) {
+			return mBytes;
+		}
+	}
+	
+	public int getHitCount()
+	{
+		synchronized(lock) {
+			return mHits;
+		}
+	}
+	
+	public int getMissCount()
+	{
+		synchronized(lock) {
+			return mMisses;
+		}
+	}
+	
+	public int getEvictionCount()
+	{
+		synchronized(lock) {
+			return mEvictions;
+		}
+	}
+	
 	public void setDefaultImage(Bitmap defaultImage)
 	{
 		mDefaultImage = defaultImage;
@@ -67,6 +138,7 @@ public class ThumbnailCache {
 	{
 		synchronized(lock) {
 			mImages.clear();
+			mBytes = 0;
 		}
 	}
 	
@@ -75,7 +147,8 @@ public class ThumbnailCache {
 		mDownloader.setPause(true);
 		mListener = null;
 		mProvider = null;
-		mImages.clear();
+		mLoader = null;
+		empty();
 	}
 	
 	public boolean contains(String key)
@@ -117,18 +190,17 @@ public class ThumbnailCache {
 		}
 		
 		if (resize) {
-			bitmap = Utils.centerCrop(bitmap, 44, 44);
-		}
-		
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		if (bitmap.compress(CompressFormat.JPEG, 85, out)) {
-			if (out != null) {
-				bitmap = BitmapFactory.decodeStream(new ByteArrayInputStream(out.toByteArray()));
-			}
+			bitmap = Utils.centerCrop(bitmap, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
 		}
 		
 		synchronized(lock) {
-			mImages.put(key, new SoftReference<Bitmap>(bitmap));
+			Bitmap old = mImages.put(key, bitmap);
+			if (old != null) {
+				mBytes -= sizeOf(old);
+			}
+			mBytes += sizeOf(bitmap);
+			trimTo(mMaxBytes);
+			
 			ImageListener listener = mListener;
 			if (notify && listener != null) {
 				listener.onImageReady(key);
@@ -140,8 +212,9 @@ public class ThumbnailCache {
 	{
 		synchronized(lock) {
 			if (key != null) {
-				if (mImages.containsKey(key)) {
-					mImages.remove(key);
+				Bitmap old = mImages.remove(key);
+				if (old != null) {
+					mBytes -= sizeOf(old);
 					return true;
 				}
 			}
@@ -159,23 +232,22 @@ public class ThumbnailCache {
 		Bitmap image = null;
 		
 		synchronized(lock) {
-			if (mImages.containsKey(key)) {
-				if (mImages.get(key) != null) {
-					image = mImages.get(key).get();
-				}
+			image = mImages.get(key);
+			if (image != null) {
+				mHits++;
+			} else {
+				mMisses++;
 			}
 		}
 		
 		if (image == null) {
 			if (mDefaultImage != null) {
-				//mImages.put(key, new SoftReference<Bitmap>(mDefaultImage));
 				image = mDefaultImage;
 			}
 			ImageProvider provider = mProvider;
 			if (provider == null) {
 				mDownloader.download(key);
 			} else {
-				remove(key);
 				provider.onImageRequired(key);
 			}
 		}
@@ -183,6 +255,24 @@ public class ThumbnailCache {
 		return image;
 	}
 	
+	// Bitmap.getByteCount() needs API 12
+	private static int sizeOf(Bitmap bitmap)
+	{
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+	
+	// call with lock held
+	private void trimTo(int maxBytes)
+	{
+		Iterator<Bitmap> it = mImages.values().iterator();
+		while (mBytes > maxBytes && it.hasNext()) {
+			Bitmap eldest = it.next();
+			it.remove();
+			mBytes -= sizeOf(eldest);
+			mEvictions++;
+		}
+	}
+	
 	// this can be used in onPause and onResume to conserve
 	// battery life by terminating the looping downloader
 	// thread
@@ -211,49 +301,130 @@ public class ThumbnailCache {
 		boolean onImageRequired(String url);
 	}
 	
+	// Loads the image for a key on one of the downloader's threads.
+	// Without one, keys are taken to be urls and downloaded.
+	public interface ImageLoader {
+		Bitmap load(String key) throws IOException;
+	}
+	
+	public void setImageLoader(ImageLoader loader)
+	{
+		mLoader = loader;
+	}
+	
+	// Queues a key that isn't on screen yet behind everything asked for with
+	// get(), so it loads only once the downloader is otherwise idle
+	public void prefetch(String key)
+	{
+		if (key == null || contains(key) || mProvider != null) {
+			return;
+		}
+		
+		mDownloader.prefetch(key);
+	}
+	
+	// Drops a queued request, e.g. when the view that wanted it was recycled.
+	// Returns false if it wasn't queued or is already loading.
+	public boolean cancel(String key)
+	{
+		return mDownloader.cancel(key);
+	}
+	
+	private Bitmap load(String key) throws IOException
+	{
+		ImageLoader loader = mLoader;
+		if (loader != null) {
+			return loader.load(key);
+		}
+		
+		InputStream friend = Utils.downloadPictureAsStream(key);
+		if (friend == null) {
+			return null;
+		}
+		
+		try {
+			return BitmapFactory.decodeStream(friend);
+		} finally {
+			friend.close();
+		}
+	}
+	
 	private static class ImageDownloader {
 		private final static String TAG = "ImageDownloader";
-		private final BlockingQueue<String> urlQueue = new LinkedBlockingQueue<String>();
-		private WeakReference<ThumbnailCache> mCache;
-		private Thread downloadThread;
+		private final static int THREADS = 3;
+		// requests further back than this are for rows long scrolled away,
+		// so the oldest are dropped
+		private final static int MAX_PENDING = 48;
+		
+		// the newest request is at the end and taken first, so whatever is on
+		// screen loads ahead of what was scrolled past
+		private final List<String> mPending = new ArrayList<String>();
+		private final Set<String> mLoading = new HashSet<String>();
+		private final WeakReference<ThumbnailCache> mCache;
+		private final Thread[] mThreads = new Thread[THREADS];
+		// threads from before a pause exit once they see this change
+		private int mGeneration = 0;
 		private boolean paused = false;
 		
 		public ImageDownloader(ThumbnailCache cache)
 		{
 			mCache = new WeakReference<ThumbnailCache>(cache);
-			setupThread();
+			setupThreads();
 		}
 
-		private void setupThread()
+		private synchronized void setupThreads()
 		{
-			final ThumbnailCache cache = mCache.get();
-			downloadThread = new Thread(new Runnable() {
-				public void run() {
-					String url;
-					while(!paused) {
+			final int generation = mGeneration;
+			for (int i = 0; i < THREADS; i++) {
+				mThreads[i] = new Thread(new Runnable() {
+					public void run() {
 						try {
-							url = urlQueue.take();
-							InputStream friend = Utils.downloadPictureAsStream(url);
-							if (friend != null) {
-								Bitmap image = BitmapFactory.decodeStream(friend);
-								if (cache != null) {
-									cache.add(url, image, true, true);	
-								}
-							}
-							
+							work(generation);
 						} catch (InterruptedException e) {
 							Log.d(TAG, "INTERRUPTED!");
-						} catch (IOException e) {
-							e.printStackTrace();
 						}
 					}
+				}, TAG + "-" + i);
+				mThreads[i].start();
+			}
+		}
+		
+		private void work(int generation) throws InterruptedException
+		{
+			while (true) {
+				String url;
+				synchronized (this) {
+					while (generation == mGeneration && mPending.isEmpty()) {
+						wait();
+					}
+					if (generation != mGeneration) {
+						return;
+					}
+					url = mPending.remove(mPending.size() - 1);
+					mLoading.add(url);
 				}
-			});
-			
-			downloadThread.start();
+				
+				try {
+					ThumbnailCache cache = mCache.get();
+					if (cache == null) {
+						return;
+					}
+					
+					Bitmap image = cache.load(url);
+					if (image != null) {
+						cache.add(url, image, true, true);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					synchronized (this) {
+						mLoading.remove(url);
+					}
+				}
+			}
 		}
 		
-		public void setPause(boolean value)
+		public synchronized void setPause(boolean value)
 		{
 			if (paused == value) {
 				return;
@@ -261,24 +432,52 @@ public class ThumbnailCache {
 			
 			Log.d(TAG, "setPause called with " + value);
 			paused = value;
-			if (paused && downloadThread != null) {
-				downloadThread.interrupt();
-			} else if (!paused) {
-				setupThread();
+			if (paused) {
+				mGeneration++;
+				notifyAll();
+				for (Thread thread : mThreads) {
+					if (thread != null) {
+						thread.interrupt();
+					}
+				}
+			} else {
+				setupThreads();
 			}
 		}
 		
-		public void download(String url)
+		public synchronized void download(String url)
 		{
-			if (url == null) {
+			if (url == null || mLoading.contains(url)) {
 				return;
 			}
 			
-			try {
-				urlQueue.put(url);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			// asking again moves it to the front
+			mPending.remove(url);
+			mPending.add(url);
+			if (mPending.size() > MAX_PENDING) {
+				mPending.remove(0);
 			}
+			notify();
+		}
+		
+		public synchronized void prefetch(String url)
+		{
+			if (url == null || mLoading.contains(url) || mPending.contains(url) 
+					|| mPending.size() >= MAX_PENDING) {
+				return;
+			}
+			
+			mPending.add(0, url);
+			notify();
+		}
+		
+		public synchronized boolean cancel(String url)
+		{
+			if (url == null) {
+				return false;
+			}
+			
+			return mPending.remove(url);
 		}
 	}
 }
@@ -24,26 +24,37 @@ package com.nloko.android;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -88,31 +99,104 @@ public final class Utils {
 		return(info!=null && info.isConnected()); 
 	}
 	
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    // Hashing runs on several sync threads at once, so each gets its own
+    // digest and buffer
+    private static final ThreadLocal<MessageDigest> mMd5 = new ThreadLocal<MessageDigest>() {
+    	@Override
+    	protected MessageDigest initialValue() {
+    		try {
+    			return MessageDigest.getInstance("MD5");
+    		} catch(NoSuchAlgorithmException e) {
+    			Log.e("MD5", e.getMessage());
+    			return null;
+    		}
+    	}
+    };
+    
+    private static final ThreadLocal<byte[]> mMd5Buffer = new ThreadLocal<byte[]>() {
+    	@Override
+    	protected byte[] initialValue() {
+    		return new byte[8192];
+    	}
+    };
+    
     public static String getMd5Hash(byte[] input) 
     {
-    	  if (input == null) {
-    		  throw new IllegalArgumentException("input");
-    	  }
-    	  
-          try {
-              MessageDigest md = MessageDigest.getInstance("MD5");
-              byte[] messageDigest = md.digest(input);
-              BigInteger number = new BigInteger(1,messageDigest);
-              //String md5 = number.toString(16);
-              StringBuffer md5 = new StringBuffer();
-              md5.append(number.toString(16));
-
-              while (md5.length() < 32) {
-                  //md5 = "0" + md5;
-                  md5.insert(0, "0");
-              }
-              
-              return md5.toString();
-          } 
-          catch(NoSuchAlgorithmException e) {
-        	  Log.e("MD5", e.getMessage());
-              return null;
-          }
+    	if (input == null) {
+    		throw new IllegalArgumentException("input");
+    	}
+    	
+    	MessageDigest md = mMd5.get();
+    	if (md == null) {
+    		return null;
+    	}
+    	
+    	return toHex(md.digest(input));
+    }
+    
+    public static String getMd5Hash(PooledBuffer input) 
+    {
+    	if (input == null) {
+    		throw new IllegalArgumentException("input");
+    	}
+    	
+    	return getMd5Hash(input.getBytes(), 0, input.getLength());
+    }
+    
+    public static String getMd5Hash(byte[] input, int offset, int length) 
+    {
+    	if (input == null) {
+    		throw new IllegalArgumentException("input");
+    	}
+    	
+    	MessageDigest md = mMd5.get();
+    	if (md == null) {
+    		return null;
+    	}
+    	
+    	md.update(input, offset, length);
+    	return toHex(md.digest());
+    }
+    
+    // Hashes the stream as it is read, without holding all of it in memory.
+    // The stream is read to the end but not closed.
+    public static String getMd5Hash(InputStream input) throws IOException
+    {
+    	if (input == null) {
+    		throw new IllegalArgumentException("input");
+    	}
+    	
+    	MessageDigest md = mMd5.get();
+    	if (md == null) {
+    		return null;
+    	}
+    	
+    	byte[] buffer = mMd5Buffer.get();
+    	int read;
+    	try {
+    		while ((read = input.read(buffer, 0, buffer.length)) != -1) {
+    			md.update(buffer, 0, read);
+    		}
+    	} catch (IOException e) {
+    		md.reset();
+    		throw e;
+    	}
+    	
+    	return toHex(md.digest());
+    }
+    
+    // Lower case hex with two digits per byte, so an MD5 is always 32 chars
+    public static String toHex(byte[] bytes)
+    {
+    	char[] hex = new char[bytes.length * 2];
+    	for (int i = 0; i < bytes.length; i++) {
+    		hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+    		hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+    	}
+    	
+    	return new String(hex);
     }
       
 	public static String buildNameSelection (String field, String firstName, String lastName)
@@ -147,44 +231,125 @@ public final class Utils {
 			throw new IllegalArgumentException("is");
 		}
 		
-		int size = 8192;
-		int read = 0;
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
-		byte[] buffer = new byte[size];
-		byte[] array = null;
-		
+		PooledBuffer buffer = null;
 		try {
-			while ((read = is.read(buffer, 0, buffer.length)) > 0) {
-				bytes.write(buffer, 0, read);
+			buffer = BufferPool.getDefault().read(is, 0);
+			return buffer.toByteArray();
+		} catch (IOException ex) {
+			return null;
+		} finally {
+			if (buffer != null) {
+				buffer.release();
 			}
 		}
-		catch (IOException ex) {
+	}
+	
+	public static Bitmap decodeBuffer(PooledBuffer buffer)
+	{
+		if (buffer == null) {
+			throw new IllegalArgumentException("buffer");
+		}
+		
+		return BitmapFactory.decodeByteArray(buffer.getBytes(), 0, buffer.getLength());
+	}
+	
+	// scratch space for decoding, one per decoding thread
+	private static final ThreadLocal<byte[]> mDecodeStorage = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[16 * 1024];
+		}
+	};
+	
+	// Decodes the picture subsampled by the largest power of two that keeps 
+	// it at least minWidth x minHeight, or as is if it's smaller than that.
+	// Returns null if the picture can't be decoded.
+	public static Bitmap decodeBuffer(PooledBuffer buffer, int minWidth, int minHeight, Bitmap.Config config)
+	{
+		if (buffer == null) {
+			throw new IllegalArgumentException("buffer");
+		}
+		
+		byte[] bytes = buffer.getBytes();
+		int length = buffer.getLength();
+		
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(bytes, 0, length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
 			return null;
-		} finally {
-			try {
-				if (bytes != null) {
-					array = bytes.toByteArray();
-				 	bytes.close();
-				}
-			} catch (IOException e) {}
 		}
 		
-		return array;
+		options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, minWidth, minHeight);
+		options.inJustDecodeBounds = false;
+		options.inPreferredConfig = config;
+		options.inTempStorage = mDecodeStorage.get();
+		
+		Log.d(TAG, String.format("decoding %dx%d with sample size %d", 
+				options.outWidth, options.outHeight, options.inSampleSize));
+		return BitmapFactory.decodeByteArray(bytes, 0, length, options);
+	}
+	
+	public static int getSampleSize(int width, int height, int minWidth, int minHeight)
+	{
+		if (minWidth < 1 || minHeight < 1) {
+			throw new IllegalArgumentException("minWidth and minHeight must be positive");
+		}
+		
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= minWidth && height / (sampleSize * 2) >= minHeight) {
+			sampleSize *= 2;
+		}
+		
+		return sampleSize;
 	}
 
 	public static Bitmap centerCrop (Bitmap bitmap, int destHeight, int destWidth)
 	{
-		Bitmap resized;
-		if (bitmap.getHeight() > bitmap.getWidth()) {
-			resized = resize(bitmap, 0, destWidth);
+		return centerCrop(bitmap, destHeight, destWidth, null);
+	}
+	
+	// Scales the bitmap so its shorter side fits the destination and crops
+	// the middle of it, in one pass. Bitmaps are never scaled up, so one 
+	// that is already small enough is returned as is.
+	//
+	// The result is drawn into reuse when it is a mutable RGB_565 bitmap of
+	// the resulting size, otherwise into a new bitmap.
+	public static Bitmap centerCrop (Bitmap bitmap, int destHeight, int destWidth, Bitmap reuse)
+	{
+		if (bitmap == null) {
+			throw new IllegalArgumentException("bitmap");
+		}
+		
+		CenterCrop crop = new CenterCrop(bitmap.getWidth(), bitmap.getHeight(), destWidth, destHeight);
+		if (crop.isWhole()) {
+			return bitmap;
 		}
-		else {
-			resized = resize(bitmap, destHeight, 0);
+		int outWidth = crop.outWidth;
+		int outHeight = crop.outHeight;
+		
+		Bitmap b;
+		if (reuse != null && reuse.isMutable() 
+				&& reuse.getConfig() == Bitmap.Config.RGB_565
+				&& reuse.getWidth() == outWidth 
+				&& reuse.getHeight() == outHeight) {
+			b = reuse;
+			b.eraseColor(Color.BLACK);
+		} else {
+			b = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.RGB_565);
 		}
 		
-		return crop(resized, destWidth, destWidth);
+		Canvas canvas = new Canvas(b);
+		canvas.drawBitmap(bitmap, 
+				new Rect(crop.left, crop.top, crop.left + crop.srcWidth, crop.top + crop.srcHeight), 
+				new Rect(0, 0, outWidth, outHeight), 
+				mScalePaint);
+		
+		return b;
 	}
 	
+	private static final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	
 	public static Bitmap crop(Bitmap bitmapToCrop, int destHeight, int destWidth)
 	{
         int width = bitmapToCrop.getWidth();
@@ -251,65 +416,128 @@ public final class Utils {
 	}
 	
 	public static InputStream downloadPictureAsStream (String url, int retries) throws IOException
+	{
+		PictureDownload download = downloadPicture(url, null, null, retries);
+		return download == null ? null : download.stream;
+	}
+	
+	public static PictureDownload downloadPicture (String url, String etag, String lastModified, int retries) throws IOException
 	{
 		if (url == null) {
     		throw new IllegalArgumentException ("url");
     	}
 		
-		InputStream image = null;
+		PictureDownload download = null;
 		for(int i=0; i<=retries; i++) {
 			//Log.d(TAG, "try "+i);
 			try {
-				if ((image = downloadPictureAsStream(url)) != null) break;
+				if ((download = downloadPicture(url, etag, lastModified)) != null) break;
 			} catch (IOException e) {
 				if (i == retries) throw e;
 			}
 		}
 		
-		return image;
+		return download;
 	}
-
+	
+	// Pictures mostly come from the same few CDN hosts, so every download
+	// shares one keep-alive client instead of paying a new handshake each time.
+	private static final int MAX_CONNECTIONS_PER_HOST = 4;
+	private static final int MAX_CONNECTIONS = 8;
+	private static HttpClient mHttpClient;
+	
+	public static synchronized HttpClient getHttpClient()
+	{
+		if (mHttpClient == null) {
+			HttpParams params = new BasicHttpParams();
+			// Set the timeout in milliseconds until a connection is established.
+			HttpConnectionParams.setConnectionTimeout(params, 5000);
+			// Set the default socket timeout (SO_TIMEOUT) 
+			// in milliseconds which is the timeout for waiting for data.
+			HttpConnectionParams.setSoTimeout(params, 10000);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			// how long to wait for a pooled connection
+			ConnManagerParams.setTimeout(params, 10000);
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+			ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+			HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+			
+			SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+			
+			mHttpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+		}
+		
+		return mHttpClient;
+	}
+	
+	// Returns the body of the picture as it arrives, or null if the server
+	// has no picture for the url. The connection goes back to the shared pool
+	// once the stream is read to the end or closed, so callers must close it.
 	public static InputStream downloadPictureAsStream (String url) throws IOException
+	{
+		PictureDownload download = downloadPicture(url, null, null);
+		return download == null ? null : download.stream;
+	}
+	
+	// Like downloadPictureAsStream, but revalidates a picture fetched before
+	// when given the etag or last modified date it was served with.
+	public static PictureDownload downloadPicture (String url, String etag, String lastModified) throws IOException
 	{
 		if (url == null) {
     		throw new IllegalArgumentException ("url");
     	}
     	
-		HttpClient httpclient = null;
-		InputStream stream = null;
+		HttpGet httpget = new HttpGet(url);
+		if (etag != null) {
+			httpget.addHeader("If-None-Match", etag);
+		}
+		if (lastModified != null) {
+			httpget.addHeader("If-Modified-Since", lastModified);
+		}
+		
     	try {
-    		HttpParams params = new BasicHttpParams();
-    		// Set the timeout in milliseconds until a connection is established.
-    		HttpConnectionParams.setConnectionTimeout(params, 5000);
-    		// Set the default socket timeout (SO_TIMEOUT) 
-    		// in milliseconds which is the timeout for waiting for data.
-    		HttpConnectionParams.setSoTimeout(params, 10000);
-    		
-            httpclient = new DefaultHttpClient(params);
-            HttpGet httpget = new HttpGet(url); 
-            
-            HttpResponse response = httpclient.execute(httpget);
+            HttpResponse response = getHttpClient().execute(httpget);
             HttpEntity entity = response.getEntity();
-            if (entity != null) {
-            	BufferedHttpEntity buff = new BufferedHttpEntity(entity);
-            	stream  = buff.getContent();
-            //	image = BitmapFactory.decodeStream(stream);
+            
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+            	if (entity != null) {
+            		entity.consumeContent();
+            	}
+            	return new PictureDownload(null, true, etag, lastModified, -1);
+            }
+            
+            if (entity == null) {
+            	return null;
+            }
+            
+            if (status != HttpStatus.SC_OK) {
+            	Log.w(TAG, String.format("download of %s failed with %d", url, status));
+            	entity.consumeContent();
+            	return null;
             }
+            
+            return new PictureDownload(entity.getContent(), 
+            		false, 
+            		getHeader(response, "ETag"), 
+            		getHeader(response, "Last-Modified"),
+            		entity.getContentLength());
     	} catch (IOException ex) {
+    		httpget.abort();
 	    	Log.e(null, android.util.Log.getStackTraceString(ex));
 	    	throw ex;
-    	} finally {
-	    	try {
-		    	if (httpclient != null) {
-		    		httpclient.getConnectionManager().shutdown();
-		    	}
-		    	if (stream != null) {
-		    		stream.close();
-		    	}
-	    	} catch (Exception e) {}
-	    }
-	    
-    	return stream;
+    	} catch (RuntimeException ex) {
+    		httpget.abort();
+    		throw ex;
+    	}
+	}
+	
+	private static String getHeader(HttpResponse response, String name)
+	{
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
 	}
 	
 	public static byte[] bitmapToJpeg(Bitmap bitmap, int quality)
@@ -0,0 +1,353 @@
+//
+//    ContactsMirror.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.nloko.android.Log;
+import com.nloko.android.Utils;
+import com.nloko.android.syncmypix.SyncMyPix.PhoneContacts;
+import com.nloko.android.syncmypix.contactutils.ContactUtils;
+import com.nloko.android.syncmypix.namematcher.ContactSource;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+
+// Keeps the id, lookup key and name of every phone contact in our own
+// database and in memory. A ContentObserver marks the copy dirty when the
+// contacts change. Bringing it up to date compares the versions of the raw
+// contacts with the ones copied, and only the contacts whose versions
+// differ are read from the contacts provider again.
+public final class ContactsMirror implements ContactSource {
+	private static final String TAG = "ContactsMirror";
+	private static final String VERSION_KEY = "contacts_mirror_version";
+	private static final String NAMES_VERSION_KEY = "contacts_mirror_names_version";
+	// contacts per query or delete, well below SQLite's limit on bound arguments
+	private static final int CHUNK = 200;
+	
+	private static ContactsMirror mInstance;
+	
+	private static final class Entry {
+		public final PhoneContact contact;
+		public final boolean hasPhone;
+		public final long version;
+		
+		public Entry(PhoneContact contact, boolean hasPhone, long version) {
+			this.contact = contact;
+			this.hasPhone = hasPhone;
+			this.version = version;
+		}
+	}
+	
+	private final Context mContext;
+	private final ContactUtils mContactUtils = new ContactUtils();
+	private final Map<String, Entry> mById = new HashMap<String, Entry>();
+	private final Map<String, Entry> mByLookup = new HashMap<String, Entry>();
+	private boolean mLoaded = false;
+	// nobody was watching before this process started, so start dirty
+	private volatile boolean mDirty = true;
+	
+	private final ContentObserver mObserver = new ContentObserver(null) {
+		@Override
+		public void onChange(boolean selfChange) {
+			mDirty = true;
+		}
+	};
+	
+	public static synchronized ContactsMirror getInstance(Context context) {
+		if (mInstance == null) {
+			mInstance = new ContactsMirror(context.getApplicationContext());
+		}
+		return mInstance;
+	}
+	
+	private ContactsMirror(Context context) {
+		mContext = context;
+		context.getContentResolver().registerContentObserver(ContactsContract.Contacts.CONTENT_URI, 
+				true, 
+				mObserver);
+	}
+	
+	// Changes whenever the copy does, across restarts too
+	public long getVersion() {
+		return getSettings().getLong(VERSION_KEY, 0);
+	}
+	
+	// Like getVersion, but only changes when a contact is added or removed,
+	// or its name, lookup key or phone flag change. Edits to anything else,
+	// such as a contact's photo, leave it alone.
+	public long getNamesVersion() {
+		return getSettings().getLong(NAMES_VERSION_KEY, 0);
+	}
+	
+	// The version of the contact as of the last refresh, or -1 if it isn't
+	// in the copy
+	public synchronized long getContactVersion(String id) {
+		Entry entry = id != null ? mById.get(id) : null;
+		return entry != null ? entry.version : -1;
+	}
+	
+	public synchronized List<PhoneContact> getContacts(boolean withPhone) {
+		refresh();
+		
+		List<PhoneContact> contacts = new ArrayList<PhoneContact>(mById.size());
+		for (Entry entry : mById.values()) {
+			if (!withPhone || entry.hasPhone) {
+				contacts.add(new PhoneContact(entry.contact.id, entry.contact.name, entry.contact.lookup));
+			}
+		}
+		return contacts;
+	}
+	
+	// Like ContactUtils.confirmContact, but answered from the copy unless
+	// neither the lookup key nor the id are in it
+	public PhoneContact confirmContact(ContentResolver resolver, String id, String lookup) {
+		synchronized (this) {
+			Entry entry = lookup != null ? mByLookup.get(lookup) : null;
+			if (entry == null && id != null) {
+				entry = mById.get(id);
+				if (entry != null && lookup != null && !lookup.equals(entry.contact.lookup)) {
+					// the key may have changed in ways only the provider can resolve
+					entry = null;
+				}
+			}
+			
+			if (entry != null) {
+				return new PhoneContact(entry.contact.id, null, entry.contact.lookup);
+			}
+		}
+		
+		return mContactUtils.confirmContact(resolver, id, lookup);
+	}
+	
+	// For changes the caller just made itself, whose notifications may not
+	// have arrived yet
+	public void markDirty() {
+		mDirty = true;
+	}
+	
+	// Brings the copy up to date, if the contacts changed since it last was
+	public synchronized void refresh() {
+		if (!mLoaded) {
+			load();
+		}
+		if (!mDirty) {
+			return;
+		}
+		// changes from here on need another refresh
+		mDirty = false;
+		
+		ContentResolver resolver = mContext.getContentResolver();
+		Map<String, Long> versions = queryVersions(resolver);
+		if (versions == null) {
+			mDirty = true;
+			return;
+		}
+		
+		List<String> changed = new ArrayList<String>();
+		for (Map.Entry<String, Long> version : versions.entrySet()) {
+			Entry entry = mById.get(version.getKey());
+			if (entry == null || entry.version != version.getValue()) {
+				changed.add(version.getKey());
+			}
+		}
+		
+		List<String> removed = new ArrayList<String>();
+		for (String id : mById.keySet()) {
+			if (!versions.containsKey(id)) {
+				removed.add(id);
+			}
+		}
+		
+		if (changed.isEmpty() && removed.isEmpty()) {
+			return;
+		}
+		
+		Log.d(TAG, String.format("%d contacts changed and %d removed", changed.size(), removed.size()));
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		boolean namesChanged = !removed.isEmpty();
+		
+		for (String id : removed) {
+			remove(mById.get(id));
+		}
+		for (int start = 0; start < removed.size(); start += CHUNK) {
+			List<String> ids = removed.subList(start, Math.min(start + CHUNK, removed.size()));
+			operations.add(ContentProviderOperation.newDelete(PhoneContacts.CONTENT_URI)
+					.withSelection(PhoneContacts._ID + " IN (" + placeholders(ids.size()) + ")", 
+							ids.toArray(new String[ids.size()]))
+					.build());
+		}
+		
+		for (int start = 0; start < changed.size(); start += CHUNK) {
+			List<String> ids = changed.subList(start, Math.min(start + CHUNK, changed.size()));
+			Cursor cursor = resolver.query(ContactsContract.Contacts.CONTENT_URI, 
+					new String[] { ContactsContract.Contacts._ID, 
+						ContactsContract.Contacts.DISPLAY_NAME, 
+						ContactsContract.Contacts.LOOKUP_KEY, 
+						ContactsContract.Contacts.HAS_PHONE_NUMBER }, 
+					ContactsContract.Contacts._ID + " IN (" + placeholders(ids.size()) + ")", 
+					ids.toArray(new String[ids.size()]), 
+					null);
+			if (cursor == null) {
+				// these stay as they were, so the next refresh reads them again
+				mDirty = true;
+				continue;
+			}
+			
+			try {
+				while (cursor.moveToNext()) {
+					String id = cursor.getString(0);
+					Entry entry = new Entry(new PhoneContact(id, cursor.getString(1), cursor.getString(2)), 
+							cursor.getInt(3) != 0, 
+							versions.get(id));
+					Entry old = mById.get(id);
+					if (old == null || old.hasPhone != entry.hasPhone
+							|| !sameText(old.contact.name, entry.contact.name)
+							|| !sameText(old.contact.lookup, entry.contact.lookup)) {
+						namesChanged = true;
+					}
+					remove(old);
+					put(entry);
+					
+					operations.add(ContentProviderOperation.newInsert(PhoneContacts.CONTENT_URI)
+							.withValue(PhoneContacts._ID, id)
+							.withValue(PhoneContacts.DISPLAY_NAME, entry.contact.name)
+							.withValue(PhoneContacts.LOOKUP_KEY, entry.contact.lookup)
+							.withValue(PhoneContacts.HAS_PHONE_NUMBER, entry.hasPhone ? 1 : 0)
+							.withValue(PhoneContacts.VERSION, entry.version)
+							.build());
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		
+		try {
+			resolver.applyBatch(SyncMyPix.AUTHORITY, operations);
+		} catch (Exception e) {
+			Log.e(TAG, android.util.Log.getStackTraceString(e));
+		}
+		
+		Utils.setLong(getSettings(), VERSION_KEY, getVersion() + 1);
+		if (namesChanged) {
+			Utils.setLong(getSettings(), NAMES_VERSION_KEY, getNamesVersion() + 1);
+		}
+	}
+	
+	private static boolean sameText(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	// reads the copy kept by an earlier process
+	private void load() {
+		mLoaded = true;
+		Cursor cursor = mContext.getContentResolver().query(PhoneContacts.CONTENT_URI, 
+				new String[] { PhoneContacts._ID, 
+					PhoneContacts.DISPLAY_NAME, 
+					PhoneContacts.LOOKUP_KEY, 
+					PhoneContacts.HAS_PHONE_NUMBER, 
+					PhoneContacts.VERSION }, 
+				null, 
+				null, 
+				null);
+		if (cursor == null) {
+			return;
+		}
+		
+		try {
+			while (cursor.moveToNext()) {
+				put(new Entry(new PhoneContact(cursor.getString(0), cursor.getString(1), cursor.getString(2)), 
+						cursor.getInt(3) != 0, 
+						cursor.getLong(4)));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	// contact id to the sum of the versions of its raw contacts
+	private static Map<String, Long> queryVersions(ContentResolver resolver) {
+		Cursor cursor = resolver.query(RawContacts.CONTENT_URI, 
+				new String[] { RawContacts.CONTACT_ID, RawContacts.VERSION }, 
+				RawContacts.DELETED + "=0 AND " + RawContacts.CONTACT_ID + " IS NOT NULL", 
+				null, 
+				null);
+		if (cursor == null) {
+			return null;
+		}
+		
+		Map<String, Long> versions = new HashMap<String, Long>(cursor.getCount());
+		try {
+			while (cursor.moveToNext()) {
+				String id = cursor.getString(0);
+				Long version = versions.get(id);
+				versions.put(id, (version == null ? 0 : version) + cursor.getLong(1));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return versions;
+	}
+	
+	private void put(Entry entry) {
+		mById.put(entry.contact.id, entry);
+		if (entry.contact.lookup != null) {
+			mByLookup.put(entry.contact.lookup, entry);
+		}
+	}
+	
+	private void remove(Entry entry) {
+		if (entry == null) {
+			return;
+		}
+		
+		mById.remove(entry.contact.id);
+		if (entry.contact.lookup != null && mByLookup.get(entry.contact.lookup) == entry) {
+			mByLookup.remove(entry.contact.lookup);
+		}
+	}
+	
+	private static String placeholders(int count) {
+		StringBuilder s = new StringBuilder(count * 2);
+		for (int i = 0; i < count; i++) {
+			s.append(i > 0 ? ",?" : "?");
+		}
+		return s.toString();
+	}
+	
+	private SharedPreferences getSettings() {
+		return mContext.getSharedPreferences(SettingsActivity.PREFS_NAME, 0);
+	}
+}
@@ -0,0 +1,404 @@
+//
+//    ResultsPager.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.nloko.android.syncmypix.SyncMyPix.Results;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+// Reads the results a page at a time, in name order. Each page starts after
+// the name and id of the last row of the one before rather than at an
+// offset, so every page is a short range scan of the name index however
+// deep into the list it is.
+//
+// Only the pages around the row the list is on are held open. A page that
+// scrolled off is closed, and read again from the key it starts after if
+// the list scrolls back to it.
+//
+// The pages can't follow changes to the results, so the pager tells its
+// listener when they change, or when a page read again no longer has the
+// rows it had. The list must then start over with a new pager.
+final class ResultsPager {
+	public static final int PAGE_SIZE = 50;
+	// pages held open on either side of the current one
+	private static final int OPEN_PAGES = 1;
+	
+	// Called on whatever thread noticed the change
+	interface Listener {
+		void onResultsChanged(ResultsPager pager);
+	}
+	
+	private final ContentResolver mResolver;
+	private final String[] mProjection;
+	private final String mSelection;
+	
+	private Listener mListener;
+	private ContentObserver mObserver;
+	// set once the pages no longer match the results
+	private boolean mInvalid = false;
+	
+	private final List<Page> mPages = new ArrayList<Page>();
+	private String[] mColumns;
+	private PageCursor mCursor;
+	// sort key of the last row read
+	private String mLastName;
+	private long mLastId = -1;
+	private boolean mDone = false;
+	
+	// A page and the sort key of the row before it. All but the last page
+	// hold PAGE_SIZE rows.
+	private static final class Page {
+		public final boolean first;
+		public final String afterName;
+		public final long afterId;
+		public final int count;
+		public Cursor cursor;
+		
+		public Page(boolean first, String afterName, long afterId, int count, Cursor cursor) {
+			this.first = first;
+			this.afterName = afterName;
+			this.afterId = afterId;
+			this.count = count;
+			this.cursor = cursor;
+		}
+	}
+	
+	// The pages read so far, as one cursor. Reading another page replaces it
+	// with a longer one over the same pages, so only the newest closes them.
+	private final class PageCursor extends AbstractCursor {
+		private final int mCount;
+		private volatile boolean mSuperseded = false;
+		private Cursor mPage;
+		private int mOffset;
+		
+		PageCursor(int count) {
+			mCount = count;
+		}
+		
+		@Override
+		public int getCount() {
+			return mCount;
+		}
+		
+		@Override
+		public String[] getColumnNames() {
+			return mColumns;
+		}
+		
+		// Once the pager is invalid, the rows it can no longer read are
+		// served as empty ones rather than failing the move, which the list
+		// would throw on. They only show until the list has a new pager.
+		@Override
+		public boolean onMove(int oldPosition, int newPosition) {
+			synchronized (ResultsPager.this) {
+				mPage = openPage(newPosition / PAGE_SIZE);
+			}
+			mOffset = newPosition % PAGE_SIZE;
+			if (mPage != null && !mPage.moveToPosition(mOffset)) {
+				mPage = null;
+			}
+			return true;
+		}
+		
+		// the page may have been moved by someone else, e.g. getLastPage(),
+		// and is null for an empty row
+		private Cursor row() {
+			if (mPage != null) {
+				mPage.moveToPosition(mOffset);
+			}
+			return mPage;
+		}
+		
+		@Override
+		public String getString(int column) {
+			Cursor row = row();
+			return row == null ? null : row.getString(column);
+		}
+		
+		@Override
+		public short getShort(int column) {
+			Cursor row = row();
+			return row == null ? 0 : row.getShort(column);
+		}
+		
+		@Override
+		public int getInt(int column) {
+			Cursor row = row();
+			return row == null ? 0 : row.getInt(column);
+		}
+		
+		@Override
+		public long getLong(int column) {
+			Cursor row = row();
+			return row == null ? 0 : row.getLong(column);
+		}
+		
+		@Override
+		public float getFloat(int column) {
+			Cursor row = row();
+			return row == null ? 0 : row.getFloat(column);
+		}
+		
+		@Override
+		public double getDouble(int column) {
+			Cursor row = row();
+			return row == null ? 0 : row.getDouble(column);
+		}
+		
+		@Override
+		public byte[] getBlob(int column) {
+			Cursor row = row();
+			return row == null ? null : row.getBlob(column);
+		}
+		
+		@Override
+		public boolean isNull(int column) {
+			Cursor row = row();
+			return row == null || row.isNull(column);
+		}
+		
+		@Override
+		public void close() {
+			super.close();
+			if (!mSuperseded) {
+				closePages();
+			}
+		}
+	}
+	
+	// projection must include the name and id
+	ResultsPager(ContentResolver resolver, String[] projection, String selection) {
+		if (resolver == null) {
+			throw new IllegalArgumentException("resolver");
+		}
+		
+		mResolver = resolver;
+		mProjection = projection;
+		mSelection = selection;
+	}
+	
+	public String getSelection() {
+		return mSelection;
+	}
+	
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+	
+	// Starts watching the results for the listener, until release()
+	public synchronized void setListener(Listener listener) {
+		mListener = listener;
+		if (mObserver == null && listener != null) {
+			mObserver = new ContentObserver(null) {
+				@Override
+				public void onChange(boolean selfChange) {
+					invalidate();
+				}
+			};
+			mResolver.registerContentObserver(Results.CONTENT_URI, true, mObserver);
+		}
+	}
+	
+	// Stops telling the listener about changes, once the list has let go
+	// of the pager. The pages are closed with the list's cursor.
+	public synchronized void release() {
+		mListener = null;
+		if (mObserver != null) {
+			mResolver.unregisterContentObserver(mObserver);
+			mObserver = null;
+		}
+	}
+	
+	// the listener is told once, however many changes follow
+	private void invalidate() {
+		Listener listener;
+		synchronized (this) {
+			if (mInvalid) {
+				return;
+			}
+			mInvalid = true;
+			listener = mListener;
+		}
+		
+		if (listener != null) {
+			listener.onResultsChanged(this);
+		}
+	}
+	
+	// the newest page read, positioned before its first row, or null if
+	// the list already moved far enough away for it to be closed
+	public synchronized Cursor getLastPage() {
+		if (mPages.isEmpty()) {
+			return null;
+		}
+		
+		Cursor page = mPages.get(mPages.size() - 1).cursor;
+		if (page != null) {
+			page.moveToPosition(-1);
+		}
+		return page;
+	}
+	
+	// Reads the next page and returns a cursor over all the pages so far,
+	// or null if there are no more rows. Only one page is read at a time.
+	public Cursor loadNextPage() {
+		boolean first;
+		String afterName;
+		long afterId;
+		synchronized (this) {
+			if (mDone) {
+				return null;
+			}
+			
+			first = mPages.isEmpty();
+			afterName = mLastName;
+			afterId = mLastId;
+		}
+		
+		Cursor page = query(first, afterName, afterId);
+		
+		synchronized (this) {
+			if (page == null) {
+				mDone = true;
+				return null;
+			}
+			
+			int count = page.getCount();
+			if (count < PAGE_SIZE) {
+				mDone = true;
+			}
+			
+			// the first page is returned even when empty, so the list has a cursor
+			if (count == 0 && !first) {
+				page.close();
+				return null;
+			}
+			
+			if (mColumns == null) {
+				mColumns = page.getColumnNames();
+			}
+			if (page.moveToLast()) {
+				mLastName = page.getString(page.getColumnIndex(Results.NAME));
+				mLastId = page.getLong(page.getColumnIndex(Results._ID));
+			}
+			page.moveToPosition(-1);
+			mPages.add(new Page(first, afterName, afterId, count, page));
+			
+			int total = 0;
+			for (Page p : mPages) {
+				total += p.count;
+			}
+			
+			PageCursor cursor = new PageCursor(total);
+			if (mCursor != null) {
+				mCursor.mSuperseded = true;
+			}
+			mCursor = cursor;
+			return cursor;
+		}
+	}
+	
+	// Returns the page, reading it again if it was closed, and closes the
+	// pages too far from it
+	private Cursor openPage(int index) {
+		if (index < 0 || index >= mPages.size()) {
+			return null;
+		}
+		
+		for (int i = 0; i < mPages.size(); i++) {
+			Page page = mPages.get(i);
+			if (page.cursor != null && Math.abs(i - index) > OPEN_PAGES) {
+				page.cursor.close();
+				page.cursor = null;
+			}
+		}
+		
+		Page page = mPages.get(index);
+		if (page.cursor == null) {
+			Cursor cursor = query(page.first, page.afterName, page.afterId);
+			// rows were added or removed since the page was first read, so
+			// the positions after it are off too
+			if (cursor == null || cursor.getCount() != page.count) {
+				if (cursor != null) {
+					cursor.close();
+				}
+				invalidate();
+				return null;
+			}
+			page.cursor = cursor;
+		}
+		return page.cursor;
+	}
+	
+	private synchronized void closePages() {
+		for (Page page : mPages) {
+			if (page.cursor != null) {
+				page.cursor.close();
+				page.cursor = null;
+			}
+		}
+	}
+	
+	private Cursor query(boolean first, String afterName, long afterId) {
+		StringBuilder where = new StringBuilder();
+		List<String> args = new ArrayList<String>(3);
+		if (!first) {
+			// names can be null, which sort first
+			if (afterName == null) {
+				where.append("((" + Results.NAME + " IS NULL AND " + Results.QUALIFIED_ID + ">?) OR " 
+						+ Results.NAME + " IS NOT NULL)");
+			} else {
+				where.append("(" + Results.NAME + ">? OR (" + Results.NAME + "=? AND " 
+						+ Results.QUALIFIED_ID + ">?))");
+				args.add(afterName);
+				args.add(afterName);
+			}
+			args.add(Long.toString(afterId));
+		}
+		
+		if (mSelection != null) {
+			if (where.length() > 0) {
+				where.append(" AND ");
+			}
+			where.append("(").append(mSelection).append(")");
+		}
+		
+		Uri uri = Results.CONTENT_URI.buildUpon()
+			.appendQueryParameter(Results.LIMIT, Integer.toString(PAGE_SIZE))
+			.build();
+		
+		return mResolver.query(uri, 
+				mProjection, 
+				where.length() > 0 ? where.toString() : null, 
+				args.isEmpty() ? null : args.toArray(new String[args.size()]), 
+				Results.PAGED_SORT_ORDER);
+	}
+}
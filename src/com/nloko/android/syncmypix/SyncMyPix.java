@@ -42,6 +42,8 @@ public final class SyncMyPix {
 		public static final String PIC_URL = "pic_url";
 		public static final String PHOTO_HASH = "photo_hash";
 		public static final String NETWORK_PHOTO_HASH = "network_photo_hash";
+		public static final String PHOTO_ETAG = "photo_etag";
+		public static final String PHOTO_LAST_MODIFIED = "photo_last_modified";
 		public static final String FRIEND_ID = "friend_id";
 		public static final String SOURCE = "source";
 	}
@@ -52,6 +54,12 @@ public final class SyncMyPix {
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.nloko.result";
 
         public static final String DEFAULT_SORT_ORDER = "name ASC";
+        // _id is ambiguous in the join with sync
+        public static final String QUALIFIED_ID = "results._id";
+        // a total order, so a page can start where the last one ended
+        public static final String PAGED_SORT_ORDER = "name ASC, " + QUALIFIED_ID + " ASC";
+        // query parameter limiting the number of rows returned
+        public static final String LIMIT = "limit";
         public static final String NAME = "name";
         public static final String PIC_URL = "pic_url";
         public static final String DESCRIPTION = "description";
@@ -61,6 +69,38 @@ public final class SyncMyPix {
         public static final String SYNC_ID = "sync_id";
     }
 	
+	// What each friend looked like at the end of the last sync, so the next
+	// one can tell which friends changed
+	public static final class Friends implements BaseColumns {
+		public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/friends");
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.nloko.friend";
+        
+		public static final String DEFAULT_SORT_ORDER = "_id ASC";
+		public static final String FRIEND_ID = "friend_id";
+		public static final String SOURCE = "source";
+		public static final String NAME = "name";
+		public static final String PIC_URL = "pic_url";
+		public static final String LAST_SEEN = "last_seen";
+		// the contact the friend was matched to, if any, and its version 
+		// as of the end of the sync
+		public static final String CONTACT_ID = "contact_id";
+		public static final String CONTACT_VERSION = "contact_version";
+	}
+	
+	// A copy of the phone's contacts, so a sync only has to ask the contacts
+	// provider about the ones that changed. _ID is the contact's id.
+	public static final class PhoneContacts implements BaseColumns {
+		public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/phone_contacts");
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.nloko.phonecontact";
+        
+		public static final String DEFAULT_SORT_ORDER = "_id ASC";
+		public static final String LOOKUP_KEY = "lookup_key";
+		public static final String DISPLAY_NAME = "display_name";
+		public static final String HAS_PHONE_NUMBER = "has_phone_number";
+		// the sum of the versions of the contact's raw contacts
+		public static final String VERSION = "version";
+	}
+	
 	public static final class Sync implements BaseColumns {
 		public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/sync");
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.nloko.sync";
@@ -56,7 +56,10 @@ public class SyncMyPixBroadcastReceiver extends BroadcastReceiver {
 		else if(action.equals(SyncMyPix.SYNC_INTENT)) {
 			Context appContext = context.getApplicationContext();
 			SyncWakeLock.acquireWakeLock(appContext);
-			appContext.startService(new Intent(appContext, MainActivity.getSyncSource(appContext)));
+			// scheduled syncs are mostly no-ops, so only process what changed
+			Intent sync = new Intent(appContext, MainActivity.getSyncSource(appContext));
+			sync.putExtra(SyncService.EXTRA_INCREMENTAL, true);
+			appContext.startService(sync);
 		}
 		
 		// this is undocumented stuff from android.content.SyncManager
@@ -22,16 +22,28 @@
 
 package com.nloko.android.syncmypix;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.nloko.android.Log;
 import com.nloko.android.Utils;
 import com.nloko.android.syncmypix.SyncMyPix.Contacts;
+import com.nloko.android.syncmypix.SyncMyPix.Friends;
 import com.nloko.android.syncmypix.SyncMyPix.Results;
 import com.nloko.android.syncmypix.SyncMyPix.Sync;
 import com.nloko.android.syncmypix.contactutils.ContactUtils;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -42,14 +54,50 @@ public class SyncMyPixDbHelper {
 
 	private static final String TAG = "SyncMyPixDbHelper";
 	
+	// the number of changed rows a snapshot buffers before writing them back
+	private static final int SNAPSHOT_FLUSH_ROWS = 100;
+	// friends per delete, well below SQLite's limit on bound arguments
+	private static final int DELETE_CHUNK = 200;
+	
 	private final WeakReference<ContentResolver> mResolver;
 	private final ContactUtils mContactUtils;
+	private volatile Snapshot mSnapshot;
 	
 	public SyncMyPixDbHelper(Context context)
 	{
 		mResolver = new WeakReference<ContentResolver>(context.getContentResolver());
 		mContactUtils = new ContactUtils();
 	}
+	
+	// Loads the contacts table in one query, so the link and hash lookups
+	// made for every friend during a sync are answered from memory.
+	// Changes are written back in transactions of SNAPSHOT_FLUSH_ROWS rows,
+	// and the rest when endSnapshot() is called. As that can happen at any
+	// time, the hashes of a photo must only be recorded once it is written.
+	public void beginSnapshot(String source)
+	{
+		if (source == null) {
+			throw new IllegalArgumentException("source");
+		}
+		
+		final ContentResolver resolver = mResolver.get();
+		if (resolver == null) {
+			return;
+		}
+		
+		Snapshot snapshot = new Snapshot(source);
+		snapshot.load(resolver);
+		mSnapshot = snapshot;
+	}
+	
+	public void endSnapshot()
+	{
+		Snapshot snapshot = mSnapshot;
+		mSnapshot = null;
+		if (snapshot != null) {
+			snapshot.flush();
+		}
+	}
 
 	public void deleteData() {
 		ContentResolver resolver = mResolver.get();
@@ -180,6 +228,167 @@ public class SyncMyPixDbHelper {
 		cursor.close();
 	}
 	
+	// Moves the results of every earlier sync of source to syncId, so an
+	// incremental sync keeps the results of the friends it doesn't process
+	public void carryOverResults(String source, String syncId)
+	{
+		if (source == null) {
+    		throw new IllegalArgumentException("source");
+    	} else if (syncId == null) {
+    		throw new IllegalArgumentException("syncId");
+    	}
+		
+		final ContentResolver resolver = mResolver.get();
+		if (resolver == null) {
+			return;
+		}
+		
+		Cursor cursor = resolver.query(Sync.CONTENT_URI,
+						new String[] { Sync._ID, Sync.SOURCE }, 
+						Sync.SOURCE + "=? AND " + Sync._ID + "<>?", 
+						new String[] { source, syncId }, 
+						null);
+		
+		ContentValues values = new ContentValues();
+		values.put(Results.SYNC_ID, syncId);
+		while (cursor.moveToNext()) {
+			String id = cursor.getString(cursor.getColumnIndex(Sync._ID));
+			resolver.update(Results.CONTENT_URI, values, Results.SYNC_ID + "=?", new String[] { id });
+			// nothing is left to go with it
+			resolver.delete(Uri.withAppendedPath(Sync.CONTENT_URI, id), null, null);
+		}
+		
+		cursor.close();
+	}
+	
+	// Deletes the results of syncId for the given friends
+	public void deleteResults(String syncId, Collection<String> friendIds)
+	{
+		if (syncId == null) {
+    		throw new IllegalArgumentException("syncId");
+    	} else if (friendIds == null || friendIds.isEmpty()) {
+    		return;
+    	}
+		
+		final ContentResolver resolver = mResolver.get();
+		if (resolver == null) {
+			return;
+		}
+		
+		// a statement can only bind so many arguments
+		List<String> ids = new ArrayList<String>(friendIds);
+		for (int start = 0; start < ids.size(); start += DELETE_CHUNK) {
+			int end = Math.min(start + DELETE_CHUNK, ids.size());
+			String[] args = new String[end - start + 1];
+			StringBuilder where = new StringBuilder(Results.SYNC_ID + "=? AND " + Results.FRIEND_ID + " IN (");
+			args[0] = syncId;
+			for (int i = start; i < end; i++) {
+				where.append(i > start ? ",?" : "?");
+				args[i - start + 1] = ids.get(i);
+			}
+			where.append(")");
+			resolver.delete(Results.CONTENT_URI, where.toString(), args);
+		}
+	}
+	
+	// The friends of source as they were when last synced, by uid
+	public Map<String, FriendFingerprint> getFriendFingerprints(String source)
+	{
+		if (source == null) {
+    		throw new IllegalArgumentException("source");
+    	}
+		
+		Map<String, FriendFingerprint> friends = new HashMap<String, FriendFingerprint>();
+		final ContentResolver resolver = mResolver.get();
+		if (resolver == null) {
+			return friends;
+		}
+		
+		Cursor cursor = resolver.query(Friends.CONTENT_URI,
+				new String[] { Friends.FRIEND_ID, 
+					Friends.NAME, 
+					Friends.PIC_URL, 
+					Friends.LAST_SEEN, 
+					Friends.CONTACT_ID, 
+					Friends.CONTACT_VERSION }, 
+				Friends.SOURCE + "=?", 
+				new String[] { source }, 
+				null);
+		if (cursor == null) {
+			return friends;
+		}
+		
+		try {
+			int uidColumn = cursor.getColumnIndex(Friends.FRIEND_ID);
+			int nameColumn = cursor.getColumnIndex(Friends.NAME);
+			int urlColumn = cursor.getColumnIndex(Friends.PIC_URL);
+			int seenColumn = cursor.getColumnIndex(Friends.LAST_SEEN);
+			int contactColumn = cursor.getColumnIndex(Friends.CONTACT_ID);
+			int versionColumn = cursor.getColumnIndex(Friends.CONTACT_VERSION);
+			while (cursor.moveToNext()) {
+				FriendFingerprint friend = new FriendFingerprint();
+				friend.name = cursor.getString(nameColumn);
+				friend.picUrl = cursor.getString(urlColumn);
+				friend.lastSeen = cursor.getLong(seenColumn);
+				friend.contactId = cursor.getString(contactColumn);
+				friend.contactVersion = cursor.getLong(versionColumn);
+				friends.put(cursor.getString(uidColumn), friend);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return friends;
+	}
+	
+	// Replaces the stored friends of source with users, leaving out the
+	// ones in skip so the next incremental sync treats them as new.
+	// contacts maps friends to the contacts they were matched to, and
+	// versions those contacts to their versions.
+	public void replaceFriends(String source, List<SocialNetworkUser> users, Set<String> skip, 
+			Map<String, String> contacts, Map<String, Long> versions, long lastSeen)
+	{
+		if (source == null) {
+    		throw new IllegalArgumentException("source");
+    	} else if (users == null) {
+    		throw new IllegalArgumentException("users");
+    	}
+		
+		final ContentResolver resolver = mResolver.get();
+		if (resolver == null) {
+			return;
+		}
+		
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(users.size() + 1);
+		operations.add(ContentProviderOperation.newDelete(Friends.CONTENT_URI)
+				.withSelection(Friends.SOURCE + "=?", new String[] { source })
+				.build());
+		
+		for (SocialNetworkUser user : users) {
+			if (user.uid == null || (skip != null && skip.contains(user.uid))) {
+				continue;
+			}
+			
+			String contactId = contacts != null ? contacts.get(user.uid) : null;
+			Long version = contactId != null && versions != null ? versions.get(contactId) : null;
+			operations.add(ContentProviderOperation.newInsert(Friends.CONTENT_URI)
+					.withValue(Friends.FRIEND_ID, user.uid)
+					.withValue(Friends.SOURCE, source)
+					.withValue(Friends.NAME, user.name)
+					.withValue(Friends.PIC_URL, user.picUrl)
+					.withValue(Friends.LAST_SEEN, lastSeen)
+					.withValue(Friends.CONTACT_ID, contactId)
+					.withValue(Friends.CONTACT_VERSION, version != null ? version : -1)
+					.build());
+		}
+		
+		try {
+			resolver.applyBatch(SyncMyPix.AUTHORITY, operations);
+		} catch (Exception e) {
+			Log.e(TAG, android.util.Log.getStackTraceString(e));
+		}
+	}
+	
 	public void updateHashes(String id, String lookup, byte[] origImage, byte[] modifiedImage)
 	{
 		String networkHash = null;
@@ -202,6 +411,12 @@ public class SyncMyPixDbHelper {
     		throw new IllegalArgumentException("id");
     	}
 		
+		final Snapshot snapshot = mSnapshot;
+		if (snapshot != null) {
+			snapshot.updateHashes(id, lookup, networkHash, updatedHash);
+			return;
+		}
+		
 		final ContentResolver resolver = mResolver.get();
 		if (resolver == null) {
 			return;
@@ -237,6 +452,48 @@ public class SyncMyPixDbHelper {
 		}
 	}
 	
+	// Records the validators a friend's picture was served with, so the
+	// next sync can ask the server whether it changed
+	public void updateValidators(String id, String lookup, String url, String etag, String lastModified)
+	{
+		if (id == null) {
+    		throw new IllegalArgumentException("id");
+    	}
+		
+		final Snapshot snapshot = mSnapshot;
+		if (snapshot != null) {
+			snapshot.updateValidators(id, lookup, url, etag, lastModified);
+			return;
+		}
+		
+		final ContentResolver resolver = mResolver.get();
+		if (resolver == null) {
+			return;
+		}
+		
+		Uri uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
+		Cursor cursor = resolver.query(uri,
+						new String[] { Contacts._ID }, 
+						null, 
+						null, 
+						null);	
+		
+		ContentValues values = new ContentValues();
+		values.put(Contacts.LOOKUP_KEY, lookup);
+		values.put(Contacts.PIC_URL, url);
+		values.put(Contacts.PHOTO_ETAG, etag);
+		values.put(Contacts.PHOTO_LAST_MODIFIED, lastModified);
+		
+		if (cursor.moveToFirst()) {
+			resolver.update(uri, values, null, null);
+		} else {
+			values.put(Contacts._ID, id);
+			resolver.insert(Contacts.CONTENT_URI, values);
+		}
+		
+		cursor.close();
+	}
+	
 	public void resetHashes(String source) {
 		resetHashes(source, false, true);
 	}
@@ -273,12 +530,23 @@ public class SyncMyPixDbHelper {
 			if (localHash) {
 				is = mContactUtils.getPhoto(resolver, id);
 				if (is != null) {
-					hash = Utils.getMd5Hash(Utils.getByteArrayFromInputStream(is));
-					values.put(Contacts.PHOTO_HASH, hash);
+					try {
+						hash = Utils.getMd5Hash(is);
+						values.put(Contacts.PHOTO_HASH, hash);
+					} catch (IOException e) {
+						Log.e(TAG, android.util.Log.getStackTraceString(e));
+					} finally {
+						try {
+							is.close();
+						} catch (IOException e) {}
+					}
 				}
 			}
 			if (networkHash) {
 				values.putNull(Contacts.NETWORK_PHOTO_HASH);
+				// without the hash, the picture has to be downloaded again
+				values.putNull(Contacts.PHOTO_ETAG);
+				values.putNull(Contacts.PHOTO_LAST_MODIFIED);
 			}
 			
 			if (values.size() > 0) {
@@ -301,6 +569,12 @@ public class SyncMyPixDbHelper {
     		throw new IllegalArgumentException("id");
     	} 
 		
+		final Snapshot snapshot = mSnapshot;
+		if (snapshot != null) {
+			snapshot.updateLink(id, lookup, friendId, source);
+			return;
+		}
+		
 		final ContentResolver resolver = mResolver.get();
 		if (resolver == null) {
 			return;
@@ -339,6 +613,11 @@ public class SyncMyPixDbHelper {
     		throw new IllegalArgumentException("source");
     	}
     	
+    	final Snapshot snapshot = mSnapshot;
+    	if (snapshot != null) {
+    		return snapshot.hasLink(id, source);
+    	}
+    	
     	final ContentResolver resolver = mResolver.get();
     	if (resolver == null) {
     		return false;
@@ -365,6 +644,11 @@ public class SyncMyPixDbHelper {
     		throw new IllegalArgumentException("source");
     	}
     	
+    	final Snapshot snapshot = mSnapshot;
+    	if (snapshot != null && snapshot.isFor(source)) {
+    		return snapshot.getLinkedContact(id);
+    	}
+    	
     	final ContentResolver resolver = mResolver.get();
     	if (resolver == null) {
     		return null;
@@ -393,6 +677,11 @@ public class SyncMyPixDbHelper {
     		throw new IllegalArgumentException("id");
     	}
     	
+    	final Snapshot snapshot = mSnapshot;
+    	if (snapshot != null) {
+    		return snapshot.getHashes(id);
+    	}
+    	
     	final ContentResolver resolver = mResolver.get();
     	if (resolver == null) {
     		return null;
@@ -403,7 +692,10 @@ public class SyncMyPixDbHelper {
     	Cursor syncC = resolver.query(syncUri, 
 				new String[] { SyncMyPix.Contacts._ID,
 				SyncMyPix.Contacts.PHOTO_HASH,
-				SyncMyPix.Contacts.NETWORK_PHOTO_HASH }, 
+				SyncMyPix.Contacts.NETWORK_PHOTO_HASH,
+				SyncMyPix.Contacts.PIC_URL,
+				SyncMyPix.Contacts.PHOTO_ETAG,
+				SyncMyPix.Contacts.PHOTO_LAST_MODIFIED }, 
 				null, 
 				null, 
 				null);
@@ -413,6 +705,9 @@ public class SyncMyPixDbHelper {
 		if (syncC.moveToFirst()) {
 			hashes.updatedHash = syncC.getString(syncC.getColumnIndex(SyncMyPix.Contacts.PHOTO_HASH));
 			hashes.networkHash = syncC.getString(syncC.getColumnIndex(SyncMyPix.Contacts.NETWORK_PHOTO_HASH));
+			hashes.picUrl = syncC.getString(syncC.getColumnIndex(SyncMyPix.Contacts.PIC_URL));
+			hashes.etag = syncC.getString(syncC.getColumnIndex(SyncMyPix.Contacts.PHOTO_ETAG));
+			hashes.lastModified = syncC.getString(syncC.getColumnIndex(SyncMyPix.Contacts.PHOTO_LAST_MODIFIED));
 		}
 		
 		syncC.close();
@@ -444,7 +739,12 @@ public class SyncMyPixDbHelper {
     			Log.d(TAG, String.format("dbhash %s hash %s", dbHash, contactHash));
     			// hashes do not match, so we don't need to track this hash anymore
     			if (!contactHash.equals(dbHash)) {
-   					resolver.delete(syncUri, null, null);
+    				final Snapshot snapshot = mSnapshot;
+    				if (snapshot != null) {
+    					snapshot.delete(id);
+    				} else {
+    					resolver.delete(syncUri, null, null);
+    				}
     				ok = false;
     			}
     		}
@@ -453,9 +753,326 @@ public class SyncMyPixDbHelper {
     	return ok;
     }
 
+	public static final class FriendFingerprint
+	{
+		public String name = null;
+		public String picUrl = null;
+		public long lastSeen = 0;
+		public String contactId = null;
+		public long contactVersion = -1;
+	}
+	
 	public final class DBHashes
 	{
 		public String updatedHash = null;
 		public String networkHash = null;
+		// where the network picture came from and the validators it was served with
+		public String picUrl = null;
+		public String etag = null;
+		public String lastModified = null;
+	}
+	
+	// A row of the contacts table, as held by a Snapshot
+	private static final class SnapshotRow
+	{
+		public final String id;
+		public String lookup;
+		public String photoHash;
+		public String networkHash;
+		public String picUrl;
+		public String etag;
+		public String lastModified;
+		public String friendId;
+		public String source;
+		// whether the row is in the database yet
+		public boolean stored;
+		
+		public SnapshotRow(String id, boolean stored)
+		{
+			this.id = id;
+			this.stored = stored;
+		}
+	}
+	
+	// The sync pipeline reads and writes from several threads, so all access
+	// is synchronized on the snapshot
+	private final class Snapshot
+	{
+		private final String mSource;
+		private final Map<String, SnapshotRow> mById = new HashMap<String, SnapshotRow>();
+		private final Map<String, SnapshotRow> mByFriend = new HashMap<String, SnapshotRow>();
+		private final Map<String, SnapshotRow> mChanged = new LinkedHashMap<String, SnapshotRow>();
+		private final Set<String> mDeleted = new HashSet<String>();
+		
+		public Snapshot(String source)
+		{
+			mSource = source;
+		}
+		
+		public boolean isFor(String source)
+		{
+			return mSource.equals(source);
+		}
+		
+		public synchronized void load(ContentResolver resolver)
+		{
+			Cursor cursor = resolver.query(Contacts.CONTENT_URI, 
+					new String[] { Contacts._ID, 
+						Contacts.LOOKUP_KEY, 
+						Contacts.PHOTO_HASH, 
+						Contacts.NETWORK_PHOTO_HASH, 
+						Contacts.FRIEND_ID, 
+						Contacts.SOURCE,
+						Contacts.PIC_URL,
+						Contacts.PHOTO_ETAG,
+						Contacts.PHOTO_LAST_MODIFIED },
+					null,
+					null, 
+					null);
+			if (cursor == null) {
+				return;
+			}
+			
+			try {
+				while (cursor.moveToNext()) {
+					SnapshotRow row = new SnapshotRow(cursor.getString(0), true);
+					row.lookup = cursor.getString(1);
+					row.photoHash = cursor.getString(2);
+					row.networkHash = cursor.getString(3);
+					row.friendId = cursor.getString(4);
+					row.source = cursor.getString(5);
+					row.picUrl = cursor.getString(6);
+					row.etag = cursor.getString(7);
+					row.lastModified = cursor.getString(8);
+					
+					mById.put(row.id, row);
+					// the first row linked to a friend wins, as with getLinkedContact
+					if (row.friendId != null && isFor(row.source) && !mByFriend.containsKey(row.friendId)) {
+						mByFriend.put(row.friendId, row);
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+			
+			Log.d(TAG, String.format("Snapshot loaded %d contacts", mById.size()));
+		}
+		
+		public synchronized PhoneContact getLinkedContact(String friendId)
+		{
+			SnapshotRow row = mByFriend.get(friendId);
+			if (row == null) {
+				return new PhoneContact(null, null, null);
+			}
+			
+			return new PhoneContact(row.id, null, row.lookup);
+		}
+		
+		public synchronized boolean hasLink(String id, String source)
+		{
+			SnapshotRow row = mById.get(id);
+			return row != null && source.equals(row.source) && row.friendId != null;
+		}
+		
+		public synchronized DBHashes getHashes(String id)
+		{
+			DBHashes hashes = new DBHashes();
+			SnapshotRow row = mById.get(id);
+			if (row != null) {
+				hashes.updatedHash = row.photoHash;
+				hashes.networkHash = row.networkHash;
+				hashes.picUrl = row.picUrl;
+				hashes.etag = row.etag;
+				hashes.lastModified = row.lastModified;
+			}
+			
+			return hashes;
+		}
+		
+		public synchronized void updateHashes(String id, String lookup, String networkHash, String updatedHash)
+		{
+			SnapshotRow row = edit(id);
+			row.lookup = lookup;
+			if (networkHash != null) {
+				row.networkHash = networkHash;
+			}
+			if (updatedHash != null) {
+				row.photoHash = updatedHash;
+			}
+			
+			changed(row);
+		}
+		
+		public synchronized void updateValidators(String id, String lookup, String url, String etag, String lastModified)
+		{
+			SnapshotRow row = edit(id);
+			row.lookup = lookup;
+			row.picUrl = url;
+			row.etag = etag;
+			row.lastModified = lastModified;
+			
+			changed(row);
+		}
+		
+		public synchronized void updateLink(String id, String lookup, String friendId, String source)
+		{
+			SnapshotRow row = edit(id);
+			if (row.friendId != null && mByFriend.get(row.friendId) == row) {
+				mByFriend.remove(row.friendId);
+			}
+			
+			row.lookup = lookup;
+			row.friendId = friendId;
+			row.source = source;
+			
+			if (friendId != null && isFor(source) && !mByFriend.containsKey(friendId)) {
+				mByFriend.put(friendId, row);
+			}
+			
+			changed(row);
+			Log.d(TAG, String.format("Updated link with contact id %s and lookup %s", id, lookup));
+		}
+		
+		public synchronized void delete(String id)
+		{
+			SnapshotRow row = mById.remove(id);
+			if (row == null) {
+				return;
+			}
+			
+			if (row.friendId != null && mByFriend.get(row.friendId) == row) {
+				mByFriend.remove(row.friendId);
+			}
+			
+			mChanged.remove(id);
+			if (row.stored) {
+				mDeleted.add(id);
+			}
+		}
+		
+		private SnapshotRow edit(String id)
+		{
+			SnapshotRow row = mById.get(id);
+			if (row == null) {
+				row = new SnapshotRow(id, false);
+				mById.put(id, row);
+			}
+			
+			return row;
+		}
+		
+		private void changed(SnapshotRow row)
+		{
+			mChanged.put(row.id, row);
+			if (mChanged.size() + mDeleted.size() >= SNAPSHOT_FLUSH_ROWS) {
+				flush();
+			}
+		}
+		
+		public synchronized void flush()
+		{
+			if (mChanged.isEmpty() && mDeleted.isEmpty()) {
+				return;
+			}
+			
+			final ContentResolver resolver = mResolver.get();
+			if (resolver == null) {
+				return;
+			}
+			
+			ArrayList<ContentProviderOperation> operations = 
+				new ArrayList<ContentProviderOperation>(mChanged.size() + mDeleted.size());
+			
+			// deletes go first, a deleted row may have been added again since
+			for (String id : mDeleted) {
+				operations.add(ContentProviderOperation
+						.newDelete(Uri.withAppendedPath(Contacts.CONTENT_URI, id))
+						.build());
+			}
+			
+			for (SnapshotRow row : mChanged.values()) {
+				ContentValues values = getValues(row);
+				if (row.stored && !mDeleted.contains(row.id)) {
+					operations.add(ContentProviderOperation
+							.newUpdate(Uri.withAppendedPath(Contacts.CONTENT_URI, row.id))
+							.withValues(values)
+							.build());
+				} else {
+					values.put(Contacts._ID, row.id);
+					operations.add(ContentProviderOperation
+							.newInsert(Contacts.CONTENT_URI)
+							.withValues(values)
+							.build());
+				}
+			}
+			
+			Log.d(TAG, String.format("Snapshot writing %d changed and %d deleted contacts", 
+					mChanged.size(), mDeleted.size()));
+			
+			try {
+				resolver.applyBatch(SyncMyPix.AUTHORITY, operations);
+				for (SnapshotRow row : mChanged.values()) {
+					row.stored = true;
+				}
+				mChanged.clear();
+				mDeleted.clear();
+			} catch (Exception e) {
+				Log.e(TAG, android.util.Log.getStackTraceString(e));
+				flushRows(resolver);
+			}
+		}
+		
+		// Writes the pending rows one at a time, after the batch failed as a
+		// whole. Rows that still fail stay pending for the next flush.
+		private void flushRows(ContentResolver resolver)
+		{
+			Iterator<String> deleted = mDeleted.iterator();
+			while (deleted.hasNext()) {
+				String id = deleted.next();
+				try {
+					resolver.delete(Uri.withAppendedPath(Contacts.CONTENT_URI, id), null, null);
+					deleted.remove();
+				} catch (Exception e) {
+					Log.e(TAG, "Snapshot could not delete contact " + id + ": " + e.getMessage());
+				}
+			}
+			
+			Iterator<SnapshotRow> changed = mChanged.values().iterator();
+			while (changed.hasNext()) {
+				SnapshotRow row = changed.next();
+				if (mDeleted.contains(row.id)) {
+					// must not be inserted again before its delete went through
+					continue;
+				}
+				
+				try {
+					ContentValues values = getValues(row);
+					if (row.stored) {
+						resolver.update(Uri.withAppendedPath(Contacts.CONTENT_URI, row.id), values, null, null);
+					} else {
+						values.put(Contacts._ID, row.id);
+						resolver.insert(Contacts.CONTENT_URI, values);
+						row.stored = true;
+					}
+					changed.remove();
+				} catch (Exception e) {
+					Log.e(TAG, "Snapshot could not write contact " + row.id + ": " + e.getMessage());
+				}
+			}
+		}
+		
+		private ContentValues getValues(SnapshotRow row)
+		{
+			ContentValues values = new ContentValues();
+			values.put(Contacts.LOOKUP_KEY, row.lookup);
+			values.put(Contacts.PHOTO_HASH, row.photoHash);
+			values.put(Contacts.NETWORK_PHOTO_HASH, row.networkHash);
+			values.put(Contacts.PIC_URL, row.picUrl);
+			values.put(Contacts.PHOTO_ETAG, row.etag);
+			values.put(Contacts.PHOTO_LAST_MODIFIED, row.lastModified);
+			values.put(Contacts.FRIEND_ID, row.friendId);
+			values.put(Contacts.SOURCE, row.source);
+			return values;
+		}
 	}
 }
@@ -22,17 +22,25 @@
 
 package com.nloko.android.syncmypix;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 import com.nloko.android.Log;
 import com.nloko.android.syncmypix.SyncMyPix.Contacts;
+import com.nloko.android.syncmypix.SyncMyPix.Friends;
+import com.nloko.android.syncmypix.SyncMyPix.PhoneContacts;
 import com.nloko.android.syncmypix.SyncMyPix.Results;
 import com.nloko.android.syncmypix.SyncMyPix.Sync;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -48,15 +56,19 @@ public class SyncMyPixProvider extends ContentProvider {
 	private static final String TAG = "SyncMyPixProvider";
 	
     private static final String DATABASE_NAME = "syncpix.db";
-    private static final int DATABASE_VERSION = 7;
+    private static final int DATABASE_VERSION = 8;
     
-    private static final String CONTACTS_TABLE_NAME = "contacts";
-    private static final String RESULTS_TABLE_NAME = "results";
-    private static final String SYNC_TABLE_NAME = "sync";
+    private static final String CONTACTS_TABLE_NAME = SyncMyPixSchema.CONTACTS_TABLE_NAME;
+    private static final String RESULTS_TABLE_NAME = SyncMyPixSchema.RESULTS_TABLE_NAME;
+    private static final String SYNC_TABLE_NAME = SyncMyPixSchema.SYNC_TABLE_NAME;
+    private static final String FRIENDS_TABLE_NAME = SyncMyPixSchema.FRIENDS_TABLE_NAME;
+    private static final String PHONE_CONTACTS_TABLE_NAME = SyncMyPixSchema.PHONE_CONTACTS_TABLE_NAME;
 
     private static HashMap<String, String> contactsProjection;
     private static HashMap<String, String> resultsProjection;
     private static HashMap<String, String> syncProjection;
+    private static HashMap<String, String> friendsProjection;
+    private static HashMap<String, String> phoneContactsProjection;
 
     private static final int CONTACTS = 1;
     private static final int CONTACTS_ID = 2;
@@ -64,6 +76,8 @@ public class SyncMyPixProvider extends ContentProvider {
     private static final int RESULTS_ID = 4;
     private static final int SYNC = 5;
     private static final int SYNC_ID = 6;
+    private static final int FRIENDS = 7;
+    private static final int PHONE_CONTACTS = 8;
 
     private static final UriMatcher uriMatcher;
 
@@ -75,6 +89,8 @@ public class SyncMyPixProvider extends ContentProvider {
         uriMatcher.addURI(SyncMyPix.AUTHORITY, "results/#", RESULTS_ID);
         uriMatcher.addURI(SyncMyPix.AUTHORITY, "sync", SYNC);
         uriMatcher.addURI(SyncMyPix.AUTHORITY, "sync/#", SYNC_ID);
+        uriMatcher.addURI(SyncMyPix.AUTHORITY, "friends", FRIENDS);
+        uriMatcher.addURI(SyncMyPix.AUTHORITY, "phone_contacts", PHONE_CONTACTS);
 
         // Map columns to resolve ambiguity
         contactsProjection = new HashMap<String, String>();
@@ -83,6 +99,8 @@ public class SyncMyPixProvider extends ContentProvider {
         contactsProjection.put(Contacts.PIC_URL, Contacts.PIC_URL);
         contactsProjection.put(Contacts.PHOTO_HASH, Contacts.PHOTO_HASH);
         contactsProjection.put(Contacts.NETWORK_PHOTO_HASH, Contacts.NETWORK_PHOTO_HASH);
+        contactsProjection.put(Contacts.PHOTO_ETAG, Contacts.PHOTO_ETAG);
+        contactsProjection.put(Contacts.PHOTO_LAST_MODIFIED, Contacts.PHOTO_LAST_MODIFIED);
         contactsProjection.put(Contacts.FRIEND_ID, Contacts.FRIEND_ID);
         contactsProjection.put(Contacts.SOURCE, Contacts.SOURCE);
 
@@ -95,6 +113,23 @@ public class SyncMyPixProvider extends ContentProvider {
         syncProjection.put(Sync.SKIPPED, Sync.SKIPPED);
         syncProjection.put(Sync.NOT_FOUND, Sync.NOT_FOUND);
         
+        friendsProjection = new HashMap<String, String>();
+        friendsProjection.put(Friends._ID, Friends._ID);
+        friendsProjection.put(Friends.FRIEND_ID, Friends.FRIEND_ID);
+        friendsProjection.put(Friends.SOURCE, Friends.SOURCE);
+        friendsProjection.put(Friends.NAME, Friends.NAME);
+        friendsProjection.put(Friends.PIC_URL, Friends.PIC_URL);
+        friendsProjection.put(Friends.LAST_SEEN, Friends.LAST_SEEN);
+        friendsProjection.put(Friends.CONTACT_ID, Friends.CONTACT_ID);
+        friendsProjection.put(Friends.CONTACT_VERSION, Friends.CONTACT_VERSION);
+        
+        phoneContactsProjection = new HashMap<String, String>();
+        phoneContactsProjection.put(PhoneContacts._ID, PhoneContacts._ID);
+        phoneContactsProjection.put(PhoneContacts.LOOKUP_KEY, PhoneContacts.LOOKUP_KEY);
+        phoneContactsProjection.put(PhoneContacts.DISPLAY_NAME, PhoneContacts.DISPLAY_NAME);
+        phoneContactsProjection.put(PhoneContacts.HAS_PHONE_NUMBER, PhoneContacts.HAS_PHONE_NUMBER);
+        phoneContactsProjection.put(PhoneContacts.VERSION, PhoneContacts.VERSION);
+        
         resultsProjection = new HashMap<String, String>();
         resultsProjection.put(Sync._ID, SYNC_TABLE_NAME + "." + Sync._ID);
         resultsProjection.put(Sync.SOURCE, Sync.SOURCE);
@@ -122,64 +157,52 @@ public class SyncMyPixProvider extends ContentProvider {
 
         @Override
         public void onCreate(SQLiteDatabase db) {
-            db.execSQL("CREATE TABLE " + CONTACTS_TABLE_NAME + " ("
-                    + Contacts._ID + " INTEGER PRIMARY KEY,"
-                    + Contacts.LOOKUP_KEY + " TEXT DEFAULT NULL,"
-                    + Contacts.PIC_URL + " TEXT DEFAULT NULL,"
-                    + Contacts.PHOTO_HASH + " TEXT,"
-                    + Contacts.NETWORK_PHOTO_HASH + " TEXT,"
-                    + Contacts.FRIEND_ID + " TEXT DEFAULT NULL,"
-                    + Contacts.SOURCE + " TEXT"
-                    + ");");
+            db.execSQL(SyncMyPixSchema.createContactsTable(CONTACTS_TABLE_NAME));
+            db.execSQL(SyncMyPixSchema.createResultsTable(RESULTS_TABLE_NAME));
+            db.execSQL(SyncMyPixSchema.createSyncTable(SYNC_TABLE_NAME));
             
-            db.execSQL("CREATE TABLE " + RESULTS_TABLE_NAME + " ("
-                    + Results._ID + " INTEGER PRIMARY KEY,"
-                    + Results.SYNC_ID + " INTEGER,"
-                    + Results.NAME + " TEXT DEFAULT NULL,"
-                    + Results.DESCRIPTION + " TEXT DEFAULT NULL,"
-                    + Results.PIC_URL + " TEXT  DEFAULT NULL,"
-                    + Results.CONTACT_ID + " INTEGER,"
-                    + Results.LOOKUP_KEY + " TEXT DEFAULT NULL,"
-                    + Results.FRIEND_ID + " TEXT DEFAULT NULL"
-                    + ");");
-            
-            db.execSQL("CREATE TABLE " + SYNC_TABLE_NAME + " ("
-                    + Sync._ID + " INTEGER PRIMARY KEY,"
-                    + Sync.SOURCE + " TEXT DEFAULT NULL,"
-                    + Sync.DATE_STARTED + " INTEGER,"
-                    + Sync.DATE_COMPLETED + " INTEGER,"
-                    + Sync.UPDATED + " INTEGER,"
-                    + Sync.SKIPPED + " INTEGER,"
-                    + Sync.NOT_FOUND + " INTEGER"
-                    + ");");
+            createFriendsTable(db);
+            createPhoneContactsTable(db);
+            createIndexes(db);
+        }
+        
+        private void createFriendsTable(SQLiteDatabase db) {
+            db.execSQL(SyncMyPixSchema.CREATE_FRIENDS_TABLE);
+        }
+        
+        private void createPhoneContactsTable(SQLiteDatabase db) {
+            db.execSQL(SyncMyPixSchema.CREATE_PHONE_CONTACTS_TABLE);
+        }
+        
+        private void createIndexes(SQLiteDatabase db) {
+        	for (String index : SyncMyPixSchema.getIndexes()) {
+        		db.execSQL(index);
+        	}
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // version 8 only adds tables, indexes and the picture validator
+            // columns, so there is no need to rebuild the others
+            if (oldVersion == 7) {
+            	Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+            			+ newVersion + ", adding tables, indexes and columns");
+            	db.execSQL("ALTER TABLE " + CONTACTS_TABLE_NAME 
+            			+ " ADD COLUMN " + Contacts.PHOTO_ETAG + " TEXT DEFAULT NULL;");
+            	db.execSQL("ALTER TABLE " + CONTACTS_TABLE_NAME 
+            			+ " ADD COLUMN " + Contacts.PHOTO_LAST_MODIFIED + " TEXT DEFAULT NULL;");
+            	createFriendsTable(db);
+            	createPhoneContactsTable(db);
+            	createIndexes(db);
+            	return;
+            }
+            
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
 
             if (oldVersion >= 2) {
-	            db.execSQL("CREATE TABLE results_new ("
-	                    + Results._ID + " INTEGER PRIMARY KEY,"
-	                    + Results.SYNC_ID + " INTEGER,"
-	                    + Results.NAME + " TEXT DEFAULT NULL,"
-	                    + Results.DESCRIPTION + " TEXT DEFAULT NULL,"
-	                    + Results.PIC_URL + " TEXT  DEFAULT NULL,"
-	                    + Results.CONTACT_ID + " INTEGER,"
-	                    + Results.LOOKUP_KEY + " TEXT DEFAULT NULL,"
-	                    + Results.FRIEND_ID + " TEXT DEFAULT NULL"
-	                    + ");");
-	            
-                db.execSQL("CREATE TABLE sync_new  ("
-                        + Sync._ID + " INTEGER PRIMARY KEY,"
-                        + Sync.SOURCE + " TEXT DEFAULT NULL,"
-                        + Sync.DATE_STARTED + " INTEGER,"
-                        + Sync.DATE_COMPLETED + " INTEGER,"
-                        + Sync.UPDATED + " INTEGER,"
-                        + Sync.SKIPPED + " INTEGER,"
-                        + Sync.NOT_FOUND + " INTEGER"
-                        + ");");
+	            db.execSQL(SyncMyPixSchema.createResultsTable("results_new"));
+                db.execSQL(SyncMyPixSchema.createSyncTable("sync_new"));
 	                
 	            db.execSQL("DROP TABLE IF EXISTS sync;");
 	            db.execSQL("ALTER TABLE sync_new RENAME TO " + SYNC_TABLE_NAME +";");
@@ -188,15 +211,7 @@ public class SyncMyPixProvider extends ContentProvider {
 	            db.execSQL("ALTER TABLE results_new RENAME TO " + RESULTS_TABLE_NAME +";");
             }
             
-            db.execSQL("CREATE TABLE contacts_new ("
-                    + Contacts._ID + " INTEGER PRIMARY KEY,"
-                    + Contacts.LOOKUP_KEY + " TEXT DEFAULT NULL,"
-                    + Contacts.PIC_URL + " TEXT DEFAULT NULL,"
-                    + Contacts.PHOTO_HASH + " TEXT,"
-                    + Contacts.NETWORK_PHOTO_HASH + " TEXT,"
-                    + Contacts.FRIEND_ID + " TEXT DEFAULT NULL,"
-                    + Contacts.SOURCE + " TEXT"
-                    + ");");
+            db.execSQL(SyncMyPixSchema.createContactsTable("contacts_new"));
             
             if (oldVersion <= 4) {
 	            db.execSQL("INSERT INTO contacts_new (" 
@@ -224,10 +239,16 @@ public class SyncMyPixProvider extends ContentProvider {
             
             db.execSQL("DROP TABLE IF EXISTS contacts;");
             db.execSQL("ALTER TABLE contacts_new RENAME TO " + CONTACTS_TABLE_NAME +";");
+            
+            createFriendsTable(db);
+            createPhoneContactsTable(db);
+            createIndexes(db);
         }
     }
 
     private DatabaseHelper openHelper;
+    // uris changed by the batch being applied on the current thread
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
     
 	@Override
 	public int delete(Uri uri, String selection, String[] selectionArgs) {
@@ -248,8 +269,16 @@ public class SyncMyPixProvider extends ContentProvider {
             break;
             
         case RESULTS:
+        	if (!TextUtils.isEmpty(selection)) {
+        		count = db.delete(RESULTS_TABLE_NAME, selection, selectionArgs);
+        	} else {
+        		// as before selections were honored, wipe out everything
+        		count = db.delete(SYNC_TABLE_NAME, null, null);
+        		count = db.delete(RESULTS_TABLE_NAME, null, null);
+        	}
+        	break;
+        	
         case SYNC:
-        	// just wipe out everything
             count = db.delete(SYNC_TABLE_NAME, null, null);
             count = db.delete(RESULTS_TABLE_NAME, null, null);
             break;
@@ -260,11 +289,19 @@ public class SyncMyPixProvider extends ContentProvider {
             count = db.delete(RESULTS_TABLE_NAME, Results.SYNC_ID + "=" + Id, null);
             break;
             
+        case FRIENDS:
+            count = db.delete(FRIENDS_TABLE_NAME, selection, selectionArgs);
+            break;
+            
+        case PHONE_CONTACTS:
+            count = db.delete(PHONE_CONTACTS_TABLE_NAME, selection, selectionArgs);
+            break;
+            
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
 	}
 
@@ -282,6 +319,12 @@ public class SyncMyPixProvider extends ContentProvider {
         	
         case SYNC:
         	return Sync.CONTENT_TYPE;
+        	
+        case FRIENDS:
+        	return Friends.CONTENT_TYPE;
+        	
+        case PHONE_CONTACTS:
+        	return PhoneContacts.CONTENT_TYPE;
 
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
@@ -290,10 +333,19 @@ public class SyncMyPixProvider extends ContentProvider {
 
 	@Override
 	public Uri insert(Uri uri, ContentValues initialValues) {
+        SQLiteDatabase db = openHelper.getWritableDatabase();
+        Uri rowUri = insert(db, uri, initialValues);
+        notifyChange(rowUri);
+        return rowUri;
+	}
+	
+	private Uri insert(SQLiteDatabase db, Uri uri, ContentValues initialValues) {
 	    // Validate the requested uri
         if (uriMatcher.match(uri) != CONTACTS &&
         		uriMatcher.match(uri) != RESULTS &&
-        		uriMatcher.match(uri) != SYNC) {
+        		uriMatcher.match(uri) != SYNC &&
+        		uriMatcher.match(uri) != FRIENDS &&
+        		uriMatcher.match(uri) != PHONE_CONTACTS) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
@@ -332,16 +384,86 @@ public class SyncMyPixProvider extends ContentProvider {
         	}
         }
 
-        SQLiteDatabase db = openHelper.getWritableDatabase();
-        long rowId = db.insert(table, nullCol, values);
+        if (uriMatcher.match(uri) == FRIENDS) {
+        	table = FRIENDS_TABLE_NAME;
+        	baseUri = Friends.CONTENT_URI;
+        	nullCol = Friends.NAME;
+        }
+
+        long rowId;
+        if (uriMatcher.match(uri) == PHONE_CONTACTS) {
+        	// a contact that changed replaces its old row
+        	rowId = db.replace(PHONE_CONTACTS_TABLE_NAME, PhoneContacts.DISPLAY_NAME, values);
+        	baseUri = PhoneContacts.CONTENT_URI;
+        } else {
+        	rowId = db.insert(table, nullCol, values);
+        }
         if (rowId > 0) {
-            Uri rowUri = ContentUris.withAppendedId(baseUri, rowId);
-            getContext().getContentResolver().notifyChange(rowUri, null);
-            return rowUri;
+            return ContentUris.withAppendedId(baseUri, rowId);
         }
 
         throw new SQLException("Failed to insert row into " + uri);
 	}
+	
+	// Inserts all rows in one transaction, so the journal is only committed once
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		if (values == null || values.length == 0) {
+			return 0;
+		}
+		
+		SQLiteDatabase db = openHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (ContentValues row : values) {
+				insert(db, uri, row);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		
+		notifyChange(uri);
+		return values.length;
+	}
+	
+	// Applies the whole batch in one transaction. Change notifications are
+	// held back until it has been committed.
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = openHelper.getWritableDatabase();
+		HashSet<Uri> changed = new HashSet<Uri>();
+		
+		boolean successful = false;
+		mBatchChanges.set(changed);
+		db.beginTransaction();
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			successful = true;
+			return results;
+		} finally {
+			db.endTransaction();
+			mBatchChanges.set(null);
+			
+			// nothing changed if the transaction was rolled back
+			if (successful) {
+				for (Uri uri : changed) {
+					getContext().getContentResolver().notifyChange(uri, null);
+				}
+			}
+		}
+	}
+	
+	private void notifyChange(Uri uri) {
+		Set<Uri> changed = mBatchChanges.get();
+		if (changed != null) {
+			changed.add(uri);
+		} else {
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+	}
 
 	@Override
 	public boolean onCreate() {
@@ -400,6 +522,18 @@ public class SyncMyPixProvider extends ContentProvider {
             orderBy = Sync.DEFAULT_SORT_ORDER;
             break;
             
+        case FRIENDS:
+            qb.setTables(FRIENDS_TABLE_NAME);
+            qb.setProjectionMap(friendsProjection);
+            orderBy = Friends.DEFAULT_SORT_ORDER;
+            break;
+            
+        case PHONE_CONTACTS:
+            qb.setTables(PHONE_CONTACTS_TABLE_NAME);
+            qb.setProjectionMap(phoneContactsProjection);
+            orderBy = PhoneContacts.DEFAULT_SORT_ORDER;
+            break;
+            
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -408,8 +542,13 @@ public class SyncMyPixProvider extends ContentProvider {
         	orderBy = sortOrder;
         }
 
+        String limit = uri.getQueryParameter(Results.LIMIT);
+        if (limit != null && (limit.length() == 0 || !TextUtils.isDigitsOnly(limit))) {
+        	throw new IllegalArgumentException("Bad limit " + limit);
+        }
+
         SQLiteDatabase db = openHelper.getWritableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit);
 
         // Tell the cursor what uri to watch, so it knows when its source data changes
         c.setNotificationUri(getContext().getContentResolver(), uri);
@@ -449,6 +588,14 @@ public class SyncMyPixProvider extends ContentProvider {
             count = db.update(SYNC_TABLE_NAME, values, selection, selectionArgs);
             break;
             
+        case FRIENDS:
+            count = db.update(FRIENDS_TABLE_NAME, values, selection, selectionArgs);
+            break;
+            
+        case PHONE_CONTACTS:
+            count = db.update(PHONE_CONTACTS_TABLE_NAME, values, selection, selectionArgs);
+            break;
+            
         case SYNC_ID:
             Id = uri.getPathSegments().get(1);
             count = db.update(SYNC_TABLE_NAME, values, Sync._ID + "=" + Id
@@ -459,7 +606,7 @@ public class SyncMyPixProvider extends ContentProvider {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
 	}
 }
@@ -0,0 +1,138 @@
+//
+//    SyncMyPixSchema.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.nloko.android.syncmypix;
+
+import com.nloko.android.syncmypix.SyncMyPix.Contacts;
+import com.nloko.android.syncmypix.SyncMyPix.Friends;
+import com.nloko.android.syncmypix.SyncMyPix.PhoneContacts;
+import com.nloko.android.syncmypix.SyncMyPix.Results;
+import com.nloko.android.syncmypix.SyncMyPix.Sync;
+
+// The tables and indexes of syncpix.db, as SyncMyPixProvider creates them.
+// Plain Java, so the benchmarks build the same schema off the device.
+public final class SyncMyPixSchema {
+	
+    public static final String CONTACTS_TABLE_NAME = "contacts";
+    public static final String RESULTS_TABLE_NAME = "results";
+    public static final String SYNC_TABLE_NAME = "sync";
+    public static final String FRIENDS_TABLE_NAME = "friends";
+    public static final String PHONE_CONTACTS_TABLE_NAME = "phone_contacts";
+    
+	private SyncMyPixSchema() {}
+	
+	// the table is named, so an upgrade can build a copy to move rows into
+	public static String createContactsTable(String table) {
+		return "CREATE TABLE " + table + " ("
+                + Contacts._ID + " INTEGER PRIMARY KEY,"
+                + Contacts.LOOKUP_KEY + " TEXT DEFAULT NULL,"
+                + Contacts.PIC_URL + " TEXT DEFAULT NULL,"
+                + Contacts.PHOTO_HASH + " TEXT,"
+                + Contacts.NETWORK_PHOTO_HASH + " TEXT,"
+                + Contacts.PHOTO_ETAG + " TEXT DEFAULT NULL,"
+                + Contacts.PHOTO_LAST_MODIFIED + " TEXT DEFAULT NULL,"
+                + Contacts.FRIEND_ID + " TEXT DEFAULT NULL,"
+                + Contacts.SOURCE + " TEXT"
+                + ");";
+	}
+	
+	public static String createResultsTable(String table) {
+		return "CREATE TABLE " + table + " ("
+                + Results._ID + " INTEGER PRIMARY KEY,"
+                + Results.SYNC_ID + " INTEGER,"
+                + Results.NAME + " TEXT DEFAULT NULL,"
+                + Results.DESCRIPTION + " TEXT DEFAULT NULL,"
+                + Results.PIC_URL + " TEXT  DEFAULT NULL,"
+                + Results.CONTACT_ID + " INTEGER,"
+                + Results.LOOKUP_KEY + " TEXT DEFAULT NULL,"
+                + Results.FRIEND_ID + " TEXT DEFAULT NULL"
+                + ");";
+	}
+	
+	public static String createSyncTable(String table) {
+		return "CREATE TABLE " + table + " ("
+                + Sync._ID + " INTEGER PRIMARY KEY,"
+                + Sync.SOURCE + " TEXT DEFAULT NULL,"
+                + Sync.DATE_STARTED + " INTEGER,"
+                + Sync.DATE_COMPLETED + " INTEGER,"
+                + Sync.UPDATED + " INTEGER,"
+                + Sync.SKIPPED + " INTEGER,"
+                + Sync.NOT_FOUND + " INTEGER"
+                + ");";
+	}
+	
+	public static final String CREATE_FRIENDS_TABLE = 
+		"CREATE TABLE IF NOT EXISTS " + FRIENDS_TABLE_NAME + " ("
+                + Friends._ID + " INTEGER PRIMARY KEY,"
+                + Friends.FRIEND_ID + " TEXT,"
+                + Friends.SOURCE + " TEXT,"
+                + Friends.NAME + " TEXT DEFAULT NULL,"
+                + Friends.PIC_URL + " TEXT DEFAULT NULL,"
+                + Friends.LAST_SEEN + " INTEGER,"
+                + Friends.CONTACT_ID + " TEXT DEFAULT NULL,"
+                + Friends.CONTACT_VERSION + " INTEGER DEFAULT -1"
+                + ");";
+	
+	public static final String CREATE_PHONE_CONTACTS_TABLE = 
+		"CREATE TABLE IF NOT EXISTS " + PHONE_CONTACTS_TABLE_NAME + " ("
+                + PhoneContacts._ID + " INTEGER PRIMARY KEY,"
+                + PhoneContacts.LOOKUP_KEY + " TEXT DEFAULT NULL,"
+                + PhoneContacts.DISPLAY_NAME + " TEXT DEFAULT NULL,"
+                + PhoneContacts.HAS_PHONE_NUMBER + " INTEGER,"
+                + PhoneContacts.VERSION + " INTEGER"
+                + ");";
+	
+	// Lookups by friend and source happen once per friend per sync,
+	// and the results screen looks thumbnails up by picture url and
+	// pages through the results by name
+	public static String[] getIndexes() {
+		return new String[] {
+			"CREATE INDEX IF NOT EXISTS contacts_source_friend_index ON " 
+				+ CONTACTS_TABLE_NAME + " ("
+				+ Contacts.SOURCE + ","
+				+ Contacts.FRIEND_ID
+				+ ");",
+			
+			"CREATE INDEX IF NOT EXISTS results_pic_url_index ON " 
+				+ RESULTS_TABLE_NAME + " ("
+				+ Results.PIC_URL
+				+ ");",
+			
+			"CREATE INDEX IF NOT EXISTS results_sync_id_index ON " 
+				+ RESULTS_TABLE_NAME + " ("
+				+ Results.SYNC_ID
+				+ ");",
+			
+			"CREATE INDEX IF NOT EXISTS friends_source_friend_index ON " 
+				+ FRIENDS_TABLE_NAME + " ("
+				+ Friends.SOURCE + ","
+				+ Friends.FRIEND_ID
+				+ ");",
+			
+			"CREATE INDEX IF NOT EXISTS results_name_index ON " 
+				+ RESULTS_TABLE_NAME + " ("
+				+ Results.NAME + ","
+				+ Results._ID
+				+ ");"
+		};
+	}
+}
@@ -22,20 +22,21 @@
 
 package com.nloko.android.syncmypix;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
+import com.nloko.android.BufferPool;
 import com.nloko.android.Log;
 import com.nloko.android.PhotoCache;
+import com.nloko.android.PooledBuffer;
 import com.nloko.android.ThumbnailCache;
 import com.nloko.android.Utils;
 import com.nloko.android.ThumbnailCache.ImageListener;
-import com.nloko.android.ThumbnailCache.ImageProvider;
+import com.nloko.android.ThumbnailCache.ImageLoader;
 import com.nloko.android.syncmypix.SyncMyPix.Results;
 import com.nloko.android.syncmypix.SyncMyPix.Sync;
 import com.nloko.android.syncmypix.contactutils.ContactUtils;
@@ -56,6 +57,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -88,11 +90,30 @@ public class SyncResultsActivity extends Activity {
 	
 	private Handler mMainHandler;
 	private DownloadImageHandler mDownloadHandler;
-	private ThumbnailHandler mThumbnailHandler;
 	private InitializeResultsThread mInitResultsThread;
 	
 	private Bitmap mContactImage;
 	private final ThumbnailCache mCache = new ThumbnailCache();
+	private ContactThumbnailLoader mThumbnailLoader;
+	// the pager of the list's current filter, replaced on the filter thread
+	private volatile ResultsPager mPager;
+	private LoadPageTask mLoadPageTask;
+	// a sync writes results in bursts, so wait for it to settle
+	private static final int RELOAD_DELAY = 500;
+	private final Runnable mReloadResults = new Runnable() {
+		public void run() {
+			reloadResults();
+		}
+	};
+	private final ResultsPager.Listener mPagerListener = new ResultsPager.Listener() {
+		public void onResultsChanged(ResultsPager pager) {
+			Handler handler = mMainHandler;
+			if (handler != null && pager == mPager) {
+				handler.removeCallbacks(mReloadResults);
+				handler.postDelayed(mReloadResults, RELOAD_DELAY);
+			}
+		}
+	};
 	private PhotoCache mSdCache;
 
 	private ProgressBar mProgress;
@@ -129,14 +150,19 @@ public class SyncResultsActivity extends Activity {
 		
 		mContactUtils = new ContactUtils();
 		
-		mSdCache = new PhotoCache(getApplicationContext());
+		mSdCache = PhotoCache.getInstance(this);
 		Bitmap defaultImage = BitmapFactory.decodeResource(getResources(), R.drawable.default_face);
 		//mCache.setDefaultImage(Bitmap.createScaledBitmap(defaultImage, 40, 40, false));
 		mCache.setDefaultImage(defaultImage);
+		mCache.setMaxBytes(ThumbnailCache.getDefaultMaxBytes(this));
 		
 		mDbHelper = new SyncMyPixDbHelper(getApplicationContext());
 		
-        Cursor cursor = managedQuery(Results.CONTENT_URI, mProjection, null, null, Results.DEFAULT_SORT_ORDER);
+        mMainHandler = new MainHandler(this);
+        
+        // only the first page is read here, the rest as the list scrolls
+        setPager(new ResultsPager(getContentResolver(), mProjection, null));
+        Cursor cursor = mPager.loadNextPage();
         
         mProgress = (ProgressBar) findViewById(R.id.progress);
         mProgress.setVisibility(View.VISIBLE);
@@ -152,18 +178,8 @@ public class SyncResultsActivity extends Activity {
 		
         mListview.setAdapter(adapter);
         
-        mCache.setImageProvider(new ImageProvider() {
-			public boolean onImageRequired(String url) {
-				if (mThumbnailHandler != null) {
-					//Log.d(TAG, "reloading thumbnail");
-					Message msg = mThumbnailHandler.obtainMessage();
-					msg.obj = url;
-					mThumbnailHandler.sendMessage(msg);
-					return true;
-				}
-		        return false;
-			}
-        });
+        mThumbnailLoader = new ContactThumbnailLoader(this);
+        mCache.setImageLoader(mThumbnailLoader);
         
         mCache.setImageListener(new ImageListener() {
 			public void onImageReady(final String url) {
@@ -240,8 +256,6 @@ public class SyncResultsActivity extends Activity {
 				}
 			}
         });
-
-        mMainHandler = new MainHandler(this);
 	}
 
 	private static class MainHandler extends Handler
@@ -301,10 +315,6 @@ public class SyncResultsActivity extends Activity {
 			mCache.empty();
 		}
 		
-//		if (mThumbnailHandler != null) {
-//			mThumbnailHandler.stopRunning();
-//		}
-		
 		if (mDownloadHandler != null) {
 			mDownloadHandler.stopRunning();
 		}
@@ -335,12 +345,6 @@ public class SyncResultsActivity extends Activity {
         	mInitResultsThread.start();
         }
         
-        if (mThumbnailHandler == null) {
-        	HandlerThread thumbnailThread = new HandlerThread("Thumbnail");
-        	thumbnailThread.start();
-        	mThumbnailHandler = new ThumbnailHandler(this, thumbnailThread.getLooper());
-        }
-        
         mCache.togglePauseOnDownloader(false);
         
         NotificationManager notifyManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
@@ -351,14 +355,13 @@ public class SyncResultsActivity extends Activity {
 	protected void onDestroy() {
 		Log.d(TAG, "onDestroy");
 		super.onDestroy();
-		if (mThumbnailHandler != null) {
-			mThumbnailHandler.stopRunning();
-		}
 		mCache.destroy();
 		
-		if (mSdCache != null) {
-			mSdCache.releaseResources();
-		}
+		// closes every page read; a page still being read is closed
+		// when it arrives
+		mMainHandler.removeCallbacks(mReloadResults);
+		setPager(null);
+		((SimpleCursorAdapter)mListview.getAdapter()).changeCursor(null);
 	}
 		
 	@Override
@@ -594,20 +597,19 @@ public class SyncResultsActivity extends Activity {
 			Thread thread = new Thread(new Runnable() {
 				public void run() {
 					try {
-						String filename = Uri.parse(url).getLastPathSegment();
-						InputStream friend = sdCache.get(filename);
-						if (friend == null) {
-							friend = Utils.downloadPictureAsStream(url);
-						}
-						if (friend != null) {
-							byte[] bytes = Utils.getByteArrayFromInputStream(friend);
-							friend.close();
-							sdCache.add(filename, bytes);
+						PooledBuffer buffer = sdCache.getOrFetch(url, PhotoCache.URL_LOADER);
+						if (buffer != null) {
+							final Bitmap bitmap;
+							String origHash;
+							try {
+								bitmap = Utils.decodeBuffer(buffer);
+								origHash = Utils.getMd5Hash(buffer);
+							} finally {
+								buffer.release();
+							}
 							
-							final Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
 							mCache.add(url, bitmap);
-							String origHash = Utils.getMd5Hash(bytes);
-							bytes = Utils.bitmapToPNG(bitmap);
+							byte[] bytes = Utils.bitmapToPNG(bitmap);
 							String dbHash = Utils.getMd5Hash(bytes);
 							
 							// free memory
@@ -794,7 +796,11 @@ public class SyncResultsActivity extends Activity {
 				return;
 			}
 			
-			cursor = activity.getContentResolver().query(Results.CONTENT_URI, 
+			// every result carries its sync's totals, so one row will do
+			Uri uri = Results.CONTENT_URI.buildUpon()
+				.appendQueryParameter(Results.LIMIT, "1")
+				.build();
+			cursor = activity.getContentResolver().query(uri, 
 					new String[] { Sync.UPDATED, 
 						Sync.SKIPPED,
 						Sync.NOT_FOUND }, 
@@ -887,206 +893,156 @@ public class SyncResultsActivity extends Activity {
 		}
 	}
 	
-	private static class ThumbnailHandler extends Handler
+	// Replaces the list's pager, and stops watching the results for the
+	// one before. Called from the filter thread too.
+	private synchronized void setPager(ResultsPager pager)
 	{
-		private final int LOAD_ALL = 1;
-		private final WeakReference<SyncResultsActivity> mActivity;
-		private boolean running = true;
-		private boolean mLoading = false;
+		ResultsPager old = mPager;
+		mPager = pager;
+		if (old != null) {
+			old.release();
+		}
+		if (pager != null) {
+			pager.setListener(mPagerListener);
+		}
+	}
+	
+	// Starts the list over at the first page of its filter, once the
+	// results changed under the pager it has
+	private void reloadResults()
+	{
+		ResultsPager old = mPager;
+		if (old == null || isFinishing()) {
+			return;
+		}
 		
-		private static class WorkerThread extends Thread {
-			// create a structure to queue
-			private final class Work {
-				public String contactId;
-				public String url;
-				public Work(String contactId, String url) {
-					this.contactId = contactId;
-					this.url = url;
-				}
-			}
-			
-			private final BlockingQueue<Work> mQueue = new LinkedBlockingQueue<Work>();
-			private final WeakReference<SyncResultsActivity> mActivity;
-			private boolean running = true;
-			
-			public WorkerThread(SyncResultsActivity activity) {
-				mActivity = new WeakReference<SyncResultsActivity>(activity);
-			}
+		ResultsPager pager = new ResultsPager(getContentResolver(), mProjection, old.getSelection());
+		setPager(pager);
+		mLoadPageTask = new LoadPageTask(this, pager);
+		mLoadPageTask.execute();
+	}
+	
+	// Reads the page after the last one read in the background, unless that
+	// is already happening or there are no more
+	private void loadNextPage()
+	{
+		ResultsPager pager = mPager;
+		if (mLoadPageTask != null || pager == null || pager.isDone()) {
+			return;
+		}
 		
-			public void stopRunning() {
-				running = false;
-				interrupt();
-			}
-
-			public void queueWork(String contactId, String url) {
-				try {
-					mQueue.put(new Work(contactId, url));
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				
-			}
-			
-			private String queryContact(String url)
-			{
-				final SyncResultsActivity activity = mActivity.get();
-				if (activity == null) {
-					return null;
-				}
-				final ContentResolver resolver = activity.getContentResolver();
-				if (resolver == null) {
-					return null;
-				}
-				
-				final String where = Results.PIC_URL + "='" + url + "'";
-				
-				String[] projection = { 
-		        		Results._ID, 
-		        		Results.CONTACT_ID,
-		        		Results.PIC_URL };
-				
-				Cursor cursor = null;
-				String id = null;
-				try {
-					cursor = resolver.query(Results.CONTENT_URI, 
-			        	projection, 
-			        	where, 
-			        	null, 
-			        	Results.DEFAULT_SORT_ORDER);
-				
-					if (cursor.moveToNext()) {
-						id = cursor.getString(cursor.getColumnIndex(Results.CONTACT_ID));
-					}
-				} catch (Exception ex) {
-					Log.e(TAG, android.util.Log.getStackTraceString(ex));
-				} finally {
-					if (cursor != null) {
-						cursor.close();
-					}
-				}
-				
-				return id;
-			}
-
-			private void update(String contactId, String url)
-			{
-				if (contactId == null || url == null) {
-					return;
-				}
-				
-				final SyncResultsActivity activity = mActivity.get();
-				if (activity == null) {
-					return;
-				}
-
-				if (activity.mCache.contains(url)) {
-					return;
-				}
-				
-				final ContentResolver resolver = activity.getContentResolver();
-				if (resolver == null) {
-					return;
-				}
-			
-				final ContactUtils utils = activity.mContactUtils;
-				if (utils == null) {
-					return;
-				}
-				
-				try {
-					BitmapFactory.Options options = new BitmapFactory.Options();
-					options.inSampleSize = 2;
-					Bitmap bitmap = BitmapFactory.decodeStream(utils.getPhoto(resolver, contactId), null, options);
-					if (bitmap != null) {
-						//Log.d(TAG, "ThumbnailHandler updated cache " + url);
-						activity.mCache.add(url, bitmap);
-//						// HACK to force notifyDatasetUpdated() to be honoured
-//						ContentValues values = new ContentValues();
-//						values.put(Results.PIC_URL, url);
-//						//synchronized(this) {
-//							resolver.update(Results.CONTENT_URI, 
-//									values, 
-//									Results.CONTACT_ID + "=" + contactId, 
-//									null);
-//						//}
-					}
-				} catch (Exception ex) {
-					Log.e(TAG, android.util.Log.getStackTraceString(ex));
-				} finally {
-//					activity.runOnUiThread(new Runnable() {
-//
-//						public void run() {
-//							// Auto-generated method stub
-//							((SimpleCursorAdapter)activity.mListview.getAdapter()).notifyDataSetChanged();
-//						}
-//						
-//					});
-					
-				}
-				
-			}
-			
-			public void run() {
-				while(running) {
-					try {
-						Work w = mQueue.take();
-						if (w != null && w.contactId == null) {
-							w.contactId = queryContact(w.url);
-						}
-						update(w.contactId, w.url);
-					} catch (InterruptedException e) {
-						Log.d(TAG, "INTERRUPTED!");
-					}
-				}
-			}
+		mLoadPageTask = new LoadPageTask(this, pager);
+		mLoadPageTask.execute();
+	}
+	
+	private void onPageLoaded(LoadPageTask task, ResultsPager pager, Cursor cursor)
+	{
+		// a reload may have started another task meanwhile
+		if (mLoadPageTask == task) {
+			mLoadPageTask = null;
+		}
+		if (cursor == null) {
+			return;
+		}
+		
+		// the filter changed while the page was read
+		if (pager != mPager || isFinishing()) {
+			cursor.close();
+			return;
 		}
 		
-		// use a pool to support extremely popular people
-		private static final int MAX_THREADS = 3; 
-		private int mThreadIndex = 0;
-		private final List<WorkerThread> mThreadPool = new ArrayList<WorkerThread>();
+		((SimpleCursorAdapter)mListview.getAdapter()).changeCursor(cursor);
+		
+		// queue the new page's thumbnails behind the ones on screen
+		Cursor page = pager.getLastPage();
+		if (page == null) {
+			return;
+		}
 		
-		ThumbnailHandler(SyncResultsActivity activity, Looper looper)
+		int idColumn = page.getColumnIndex(Results.CONTACT_ID);
+		int urlColumn = page.getColumnIndex(Results.PIC_URL);
+		while (page.moveToNext()) {
+			long id = page.getLong(idColumn);
+			String url = page.getString(urlColumn);
+			url = url != null ? url.trim() : null;
+			if (id > 0 && url != null) {
+				mThumbnailLoader.setContactId(url, id);
+				mCache.prefetch(url);
+			}
+		}
+	}
+	
+	private static class LoadPageTask extends AsyncTask<Void, Void, Cursor>
+	{
+		private final WeakReference<SyncResultsActivity> mActivity;
+		private final ResultsPager mPager;
+		
+		LoadPageTask(SyncResultsActivity activity, ResultsPager pager)
 		{
-			super(looper);
 			mActivity = new WeakReference<SyncResultsActivity>(activity);
-			initThreadPool(activity);
-			//init();
+			mPager = pager;
 		}
 		
-		private void initThreadPool(SyncResultsActivity activity)
+		@Override
+		protected Cursor doInBackground(Void... params)
 		{
-			for (int i=0; i < MAX_THREADS; i++) {
-				WorkerThread thread = new WorkerThread(activity);
-				thread.start();
-				mThreadPool.add(thread);
+			try {
+				return mPager.loadNextPage();
+			} catch (Exception ex) {
+				Log.e(TAG, android.util.Log.getStackTraceString(ex));
+				return null;
 			}
 		}
 		
-		/*private void init()
+		@Override
+		protected void onPostExecute(Cursor cursor)
 		{
-			Message msg = obtainMessage();
-			msg.what = LOAD_ALL;
-			sendMessage(msg);
+			SyncResultsActivity activity = mActivity.get();
+			if (activity == null) {
+				if (cursor != null) {
+					cursor.close();
+				}
+				return;
+			}
+			
+			activity.onPageLoaded(this, mPager, cursor);
 		}
+	}
+	
+	// Loads the photo of the contact a result was synced to, on the
+	// thumbnail cache's downloader threads. The list's cursor already has
+	// each row's contact, so bindView hands it over with setContactId and
+	// the results are only queried for urls it never saw.
+	private static class ContactThumbnailLoader implements ImageLoader
+	{
+		private final WeakReference<SyncResultsActivity> mActivity;
+		// url to contact id, guarded by itself
+		private final HashMap<String, String> mContactIds = new HashMap<String, String>();
 		
-		public boolean isLoading() 
+		ContactThumbnailLoader(SyncResultsActivity activity)
 		{
-			return mLoading;
-		}*/
+			mActivity = new WeakReference<SyncResultsActivity>(activity);
+		}
 		
-		private void loadAll()
+		public void setContactId(String url, long contactId)
 		{
-			final SyncResultsActivity activity = mActivity.get();
-			if (activity == null) {
+			if (url == null || contactId <= 0) {
 				return;
 			}
-			final ContentResolver resolver = activity.getContentResolver();
-			if (resolver == null) {
-				return;
+			
+			synchronized(mContactIds) {
+				mContactIds.put(url, Long.toString(contactId));
 			}
+		}
 		
-			mLoading = true;
+		private String getContactId(ContentResolver resolver, String url)
+		{
+			synchronized(mContactIds) {
+				String id = mContactIds.get(url);
+				if (id != null) {
+					return id;
+				}
+			}
 			
 			String[] projection = { 
 	        		Results._ID, 
@@ -1094,18 +1050,16 @@ public class SyncResultsActivity extends Activity {
 	        		Results.PIC_URL };
 			
 			Cursor cursor = null;
+			String id = null;
 			try {
 				cursor = resolver.query(Results.CONTENT_URI, 
-			        	projection, 
-			        	null, 
-			        	null, 
-			        	Results.DEFAULT_SORT_ORDER);
-				
-				while(running && cursor.moveToNext()) {
-					String url = cursor.getString(cursor.getColumnIndex(Results.PIC_URL));
-					url = url != null ? url.trim() : null;
-					String id = cursor.getString(cursor.getColumnIndex(Results.CONTACT_ID));
-					queueWork(id, url);
+		        	projection, 
+		        	Results.PIC_URL + "=?", 
+		        	new String[] { url }, 
+		        	Results.DEFAULT_SORT_ORDER);
+			
+				if (cursor.moveToNext()) {
+					id = cursor.getString(cursor.getColumnIndex(Results.CONTACT_ID));
 				}
 			} catch (Exception ex) {
 				Log.e(TAG, android.util.Log.getStackTraceString(ex));
@@ -1113,59 +1067,59 @@ public class SyncResultsActivity extends Activity {
 				if (cursor != null) {
 					cursor.close();
 				}
-				//((SimpleCursorAdapter)activity.mListview.getAdapter()).notifyDataSetChanged();
-				mLoading = false;
 			}
-		}
-		
-		public void stopRunning()
-		{
-			synchronized(this) {
-				getLooper().quit();
-				running = false;
-				for (WorkerThread thread : mThreadPool) {
-					if (thread != null) {
-						thread.stopRunning();
-					}
+			
+			if (id != null) {
+				synchronized(mContactIds) {
+					mContactIds.put(url, id);
 				}
 			}
+			return id;
 		}
 		
-		private void queueWork(String url) {
-			queueWork(null, url);
-		}
-		
-		private void queueWork(String contactId, String url) {
-			if (mThreadIndex == mThreadPool.size()) {
-				mThreadIndex = 0;
+		public Bitmap load(String url) throws IOException
+		{
+			final SyncResultsActivity activity = mActivity.get();
+			if (activity == null) {
+				return null;
 			}
-			WorkerThread thread = mThreadPool.get(mThreadIndex++);
-			if (thread != null) {
-				thread.queueWork(contactId, url);
+			
+			final ContentResolver resolver = activity.getContentResolver();
+			if (resolver == null) {
+				return null;
 			}
-		}
 		
-		@Override
-		public void handleMessage(Message msg)
-		{
-			if (!running || mLoading) {
-				return;
-			} else if (msg.what == LOAD_ALL) {
-				loadAll();
-				return;
+			final ContactUtils utils = activity.mContactUtils;
+			if (utils == null) {
+				return null;
 			}
 			
-			final SyncResultsActivity activity = mActivity.get();
-			if (activity == null) {
-				return;
+			String contactId = getContactId(resolver, url);
+			if (contactId == null) {
+				return null;
 			}
 			
-			String url = (String) msg.obj;
-			if (url == null) {
-				return;
+			InputStream is = utils.getPhoto(resolver, contactId);
+			if (is == null) {
+				return null;
+			}
+			
+			PooledBuffer buffer;
+			try {
+				buffer = BufferPool.getDefault().read(is, is.available());
+			} finally {
+				is.close();
 			}
 			
-			queueWork(url);				
+			// decode no bigger than needed for the thumbnail it becomes
+			try {
+				return Utils.decodeBuffer(buffer, 
+						ThumbnailCache.THUMBNAIL_SIZE, 
+						ThumbnailCache.THUMBNAIL_SIZE, 
+						Bitmap.Config.RGB_565);
+			} finally {
+				buffer.release();
+			}
 		}
 	}
 	
@@ -1205,25 +1159,30 @@ public class SyncResultsActivity extends Activity {
 			String url = (String) msg.obj;
 			if (url != null) {
 				try {
-					InputStream friend = null;
-					String filename = Uri.parse(url).getLastPathSegment();
-					if (activity.mSdCache != null) {
-						friend = activity.mSdCache.get(filename);
-					}
-					
-					// cache miss
-					if (friend == null) {
-						friend = Utils.downloadPictureAsStream(url);
+					PooledBuffer buffer = null;
+					if (activity.mSdCache != null && prefs.getCache()) {
+						// the list and the sync may ask for the same picture at once
+						buffer = activity.mSdCache.getOrFetch(url, PhotoCache.URL_LOADER);
+					} else {
+						if (activity.mSdCache != null) {
+							buffer = activity.mSdCache.getBuffer(url);
+						}
+						
+						// cache miss
+						if (buffer == null) {
+							buffer = PhotoCache.URL_LOADER.load(url);
+						}
 					}
 					
 					synchronized(this) {
-						if (running && friend != null) {
-							byte[] bytes = Utils.getByteArrayFromInputStream(friend);
-							friend.close();
-							
-							Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-							if (prefs.getCache()) {
-								activity.mSdCache.add(filename, bytes);
+						if (!running && buffer != null) {
+							buffer.release();
+						} else if (buffer != null) {
+							Bitmap bitmap;
+							try {
+								bitmap = Utils.decodeBuffer(buffer);
+							} finally {
+								buffer.release();
 							}
 							Message mainMsg = handler.obtainMessage();
 							mainMsg.obj = bitmap;
@@ -1311,6 +1270,12 @@ public class SyncResultsActivity extends Activity {
 			
 			holder.name.setText(name);
 			holder.status.setText(description);
+			
+			// the row this view showed before has scrolled away, so don't
+			// spend a download slot on it
+			if (holder.url != null && !holder.url.equals(url)) {
+				activity.mCache.cancel(holder.url);
+			}
 			holder.url = url;
 			
 			// this finds the right view to load the image into
@@ -1318,18 +1283,19 @@ public class SyncResultsActivity extends Activity {
 			ImageView image = holder.image;
 			image.setTag(url);
 			
-			if (id > 0 && !activity.mCache.contains(url)) {
-				//if (!activity.mThumbnailHandler.isLoading()) {
-					//Log.d(TAG, "bindView attempting to load into cache " + url);
-					Message msg = activity.mThumbnailHandler.obtainMessage();
-					msg.obj = url;
-					activity.mThumbnailHandler.sendMessage(msg);
-				//}
-				image.setImageBitmap(activity.mCache.getDefaultImage());
-			} else if (activity.mCache.contains(url)) {
-				//Log.d(TAG, id + " bindView attempting to get from cache " + url);
+			activity.mThumbnailLoader.setContactId(url, id);
+			// keep the page after the one being looked at read ahead
+			if (cursor.getPosition() >= cursor.getCount() - ResultsPager.PAGE_SIZE) {
+				activity.loadNextPage();
+			}
+			
+			if (activity.mCache.contains(url) || (id > 0 && url != null)) {
+				// on a miss this shows the default image and queues the
+				// contact's photo ahead of the rows scrolled past
 				image.setImageBitmap(activity.mCache.get(url));
-			} else if (description.equals(context.getString(R.string.resultsdescription_notfound))) {
+			} else if (id > 0) {
+				image.setImageBitmap(activity.mCache.getDefaultImage());
+			} else if (context.getString(R.string.resultsdescription_notfound).equals(description)) {
 				image.setImageBitmap(mNeutralFace);
 			} else {
 				image.setImageBitmap(mSadFace);
@@ -1352,11 +1318,10 @@ public class SyncResultsActivity extends Activity {
 				where = Results.DESCRIPTION + " IN (" + constraint + ")";
 			}
 			
-			return resolver.query(Results.CONTENT_URI, 
-					activity.mProjection, 
-					where, 
-					null, 
-					null);
+			// the list starts over at the first page of the new filter
+			ResultsPager pager = new ResultsPager(resolver, activity.mProjection, where);
+			activity.setPager(pager);
+			return pager.loadNextPage();
 		}
 	}
 }
@@ -22,19 +22,37 @@
 
 package com.nloko.android.syncmypix;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.nloko.android.BufferPool;
 import com.nloko.android.Log;
 import com.nloko.android.PhotoCache;
+import com.nloko.android.PictureDownload;
+import com.nloko.android.PooledBuffer;
 import com.nloko.android.Utils;
 import com.nloko.android.syncmypix.SyncMyPix.Results;
 import com.nloko.android.syncmypix.SyncMyPix.Sync;
 import com.nloko.android.syncmypix.SyncMyPixDbHelper.DBHashes;
+import com.nloko.android.syncmypix.SyncMyPixDbHelper.FriendFingerprint;
 import com.nloko.android.syncmypix.contactutils.ContactUtils;
+import com.nloko.android.syncmypix.contactutils.PhotoBatch;
 import com.nloko.android.syncmypix.namematcher.NameMatcher;
 import com.nloko.android.syncmypix.namematcher.NameMatcherFactory;
 
@@ -47,19 +65,26 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.Process;
 import android.widget.Toast;
 
 public abstract class SyncService extends Service {
 
 	private final static String TAG = "SyncService";
+	// set on the intent for a sync that may be incremental, e.g. a scheduled one
+	public final static String EXTRA_INCREMENTAL = "com.nloko.android.syncmypix.INCREMENTAL";
+	private final static String SYNC_STATE_PREFIX = "sync_state_";
+	private final static String SYNC_NAMES_PREFIX = "sync_names_";
+	private final static String MATCHER_SNAPSHOT = "namematcher.idx";
 	public final static Object mSyncLock = new Object();
 	
 	public final static int IDLE = 0;
@@ -71,7 +96,8 @@ public abstract class SyncService extends Service {
 	private SyncTask mSyncOperation;
 	private NotificationManager mNotifyManager;
 	    
-	private boolean mCancel = false;
+	// read by the sync pipeline threads
+	private volatile boolean mCancel = false;
     private boolean mExecuting = false;
     private boolean mStarted = false;
 	
@@ -85,6 +111,8 @@ public abstract class SyncService extends Service {
     protected boolean mPhoneOnly;
     protected boolean mCacheOn;
     protected boolean mConsiderDiminutives;
+    // only process the friends that changed since the last sync
+    protected boolean mIncremental;
     protected SyncServiceListener mListener;
 	protected final MainHandler mMainHandler = new MainHandler(this);
 
@@ -219,61 +247,83 @@ public abstract class SyncService extends Service {
     		this.finish = finish;
     	}
     	
-    	private void createResult (ContentValues values)
-        {
-        	if (values == null) {
-        		throw new IllegalArgumentException("values");
-        	}
-        	
-        	final SyncService service = mService.get();
-			if (service != null) {
-				ContentResolver resolver = service.getContentResolver();
-				resolver.insert(Results.CONTENT_URI, values);
-			}
-        }
-     
 		public void run() {
 			
 			Log.d(TAG, "mStarted updating results at " + Long.toString(System.currentTimeMillis()));
-			synchronized (list) {
-				//for (int i=0;i<6;i++) {
-				for (ContentValues values : list) {
-					if (values != null) {
-						createResult(values);
+			final SyncService service = mService.get();
+			if (service != null) {
+				List<ContentValues> rows = new ArrayList<ContentValues>(list.size());
+				synchronized (list) {
+					for (ContentValues values : list) {
+						if (values != null) {
+							rows.add(values);
+						}
 					}
+					list.clear();
 				}
-				//}
-				list.clear();
+				// one transaction for the whole lot
+				service.getContentResolver().bulkInsert(Results.CONTENT_URI, 
+						rows.toArray(new ContentValues[rows.size()]));
 			}
 			
 			Log.d(TAG, "Finished updating results at " + Long.toString(System.currentTimeMillis()));
 			
-			if (finish) {
-				final SyncService service = mService.get();
-				if (service != null) {
-					service.mMainHandler.post(service.mMainHandler.finish);
-				}
+			if (finish && service != null) {
+				service.mMainHandler.post(service.mMainHandler.finish);
 			}
 		}
     }
     
     private static class SyncTask extends AsyncTask <List<SocialNetworkUser>, Integer, Long>
     {
+    	// Each friend passes through three stages, each with its own bounded pool.
+    	// Downloads are network bound, decoding is CPU bound and contact writes
+    	// are serialized by the contacts provider anyway, so one writer is enough.
+    	private static final int DOWNLOAD_THREADS = 4;
+    	private static final int DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    	private static final int WRITE_THREADS = 1;
+    	// the number of jobs that may wait in front of a stage before the
+    	// previous stage blocks
+    	private static final int STAGE_QUEUE_SIZE = 8;
+    	// the number of contact photos written per contacts provider transaction
+    	private static final int PHOTO_BATCH_SIZE = 25;
+    	// size of the square photo written when cropping
+    	private static final int CROP_SIZE = 96;
+    	// pictures are decoded at no less than this, but only to show
+    	// them on the progress screen unless cropping
+    	private static final int PREVIEW_SIZE = 160;
+
     	private final WeakReference<SyncService> mService;
     	private final SyncMyPixDbHelper dbHelper;
     	private final ContactUtils mContactUtils;
+    	private final ContactsMirror mContacts;
     	private final PhotoCache mCache;
     	
-    	private int mUpdated = 0;
-    	private int mSkipped = 0;
-    	private int mNotFound = 0;
+    	// each decode thread crops into the same bitmap, as the crop only
+    	// lives until it has been compressed
+    	private final ThreadLocal<Bitmap> mCropTargets = new ThreadLocal<Bitmap>();
+
+    	private final AtomicInteger mUpdated = new AtomicInteger();
+    	private final AtomicInteger mSkipped = new AtomicInteger();
+    	private final AtomicInteger mNotFound = new AtomicInteger();
+    	private final AtomicInteger mProcessed = new AtomicInteger();
+    	private int mTotal = 0;
+    	// friends to process again on the next incremental sync
+    	private final Set<String> mRetry = Collections.synchronizedSet(new HashSet<String>());
+    	// friends to the contacts they were matched to
+    	private final Map<String, String> mMatched = Collections.synchronizedMap(new HashMap<String, String>());
+
+    	private ThreadPoolExecutor mDownloadPool;
+    	private ThreadPoolExecutor mDecodePool;
+    	private ThreadPoolExecutor mWritePool;
+    	private PhotoBatch mPhotoBatch;
     	    	    	
     	public SyncTask (SyncService service)
     	{
     		mContactUtils = new ContactUtils();
+    		mContacts = ContactsMirror.getInstance(service);
     		
-    		mCache = new PhotoCache(service.getApplicationContext());
-    		mCache.setDeleteOrder(PhotoCache.DELETE_NEWEST);
+    		mCache = PhotoCache.getInstance(service);
     		
     		mService = new WeakReference<SyncService>(service);
     		dbHelper = new SyncMyPixDbHelper(mService.get().getApplicationContext());
@@ -297,7 +347,123 @@ public abstract class SyncService extends Service {
 			}
     	}
     	
-        private void processUser(final SocialNetworkUser user, PhoneContact contact, Uri sync) 
+    	// The state of a single friend as it moves through the pipeline
+    	private static final class SyncJob
+    	{
+    		public final SocialNetworkUser user;
+    		public final ContentValues values;
+    		public PhoneContact contact;
+
+    		public String contactId;
+    		public String aggregatedId;
+    		public String lookup;
+    		public DBHashes hashes;
+    		public boolean hasPhoto;
+
+    		// the downloaded picture, and the bytes that will be written to the contact
+    		public PooledBuffer buffer;
+    		public byte[] image;
+    		public String hash;
+    		public String updatedHash;
+    		public Bitmap bitmap;
+    		public boolean changed;
+
+    		// set when the picture came from the network rather than the cache
+    		public boolean downloaded;
+    		public String etag;
+    		public String lastModified;
+    		// set when the server said the picture we last synced hasn't changed
+    		public boolean notModified;
+    		// set by finishUser, which must only run once per job
+    		public boolean finished;
+
+    		public SyncJob(SocialNetworkUser user, PhoneContact contact, ContentValues values)
+    		{
+    			this.user = user;
+    			this.contact = contact;
+    			this.values = values;
+    		}
+    	}
+
+    	private static ThreadPoolExecutor createStage(final String name, int threads)
+    	{
+    		return new ThreadPoolExecutor(threads, threads,
+    				0L, TimeUnit.MILLISECONDS,
+    				new ArrayBlockingQueue<Runnable>(STAGE_QUEUE_SIZE),
+    				new ThreadFactory() {
+    					private final AtomicInteger mCount = new AtomicInteger();
+    					public Thread newThread(final Runnable r) {
+    						return new Thread(new Runnable() {
+    							public void run() {
+    								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    								r.run();
+    							}
+    						}, name + "-" + mCount.incrementAndGet());
+    					}
+    				},
+    				// block the submitting stage until there is room, instead of
+    				// buffering every friend in memory
+    				new RejectedExecutionHandler() {
+    					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+    						if (executor.isShutdown()) {
+    							throw new RejectedExecutionException(name + " is shut down");
+    						}
+    						try {
+    							executor.getQueue().put(r);
+    						} catch (InterruptedException e) {
+    							Thread.currentThread().interrupt();
+    							throw new RejectedExecutionException(e);
+    						}
+    					}
+    				});
+    	}
+
+    	private static void awaitStage(ThreadPoolExecutor pool) throws InterruptedException
+    	{
+    		pool.shutdown();
+    		while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+    			Log.d(TAG, "Waiting on " + pool.getActiveCount() + " active jobs");
+    		}
+    	}
+
+    	// Stops a stage, finishing the jobs that were waiting on it
+    	private void abortStage(ThreadPoolExecutor pool)
+    	{
+    		if (pool != null && !pool.isTerminated()) {
+    			for (Runnable r : pool.shutdownNow()) {
+    				if (r instanceof StageTask) {
+    					failUser(((StageTask) r).job, R.string.syncservice_canceled);
+    				}
+    			}
+    		}
+    	}
+
+    	// One stage of a job. A job that isn't handed to the next stage must
+    	// end in finishUser, so its buffer is released and its result kept,
+    	// even when the stage fails in a way it didn't expect.
+    	private abstract class StageTask implements Runnable
+    	{
+    		public final SyncJob job;
+
+    		public StageTask(SyncJob job)
+    		{
+    			this.job = job;
+    		}
+
+    		public final void run()
+    		{
+    			try {
+    				runStage();
+    			} catch (RuntimeException e) {
+    				Log.e(TAG, android.util.Log.getStackTraceString(e));
+    				failUser(job, R.string.resultsdescription_error);
+    			}
+    		}
+
+    		protected abstract void runStage();
+    	}
+
+        private void submitUser(final SocialNetworkUser user, PhoneContact contact, Uri sync)
         {
     		if (user == null) {
     			throw new IllegalArgumentException ("user");
@@ -305,153 +471,404 @@ public abstract class SyncService extends Service {
     			throw new IllegalArgumentException ("sync");
     		}
     		
+    		final String syncId = sync.getPathSegments().get(1);
+    		final SyncJob job = new SyncJob(user, contact, createResult(syncId, user));
+
+    		try {
+    			mDownloadPool.execute(new StageTask(job) {
+    				protected void runStage() {
+    					downloadStage(job);
+    				}
+    			});
+    		} catch (RejectedExecutionException e) {
+    			failUser(job, R.string.syncservice_canceled);
+    			throw e;
+    		}
+        }
+
+        private boolean isCancelled(SyncService service)
+        {
+        	return service == null || service.mCancel;
+        }
+
+        // Confirms the contact, decides whether its picture should be synced
+        // and fetches the friend's picture from the cache or the network
+        private void downloadStage(final SyncJob job)
+        {
     		final SyncService service = mService.get();
-    		if (service == null) {
+    		if (isCancelled(service)) {
+    			failUser(job, R.string.syncservice_canceled);
     			return;
     		}
     		final ContentResolver resolver = service.getContentResolver();
     		if (resolver == null) {
+    			failUser(job, R.string.resultsdescription_error);
     			return;
     		}
     		
+    		final SocialNetworkUser user = job.user;
+    		final ContentValues values = job.values;
+
     		Log.d(TAG, String.format("%s %s %s", user.name, user.email, user.picUrl));
     		
-    		final String syncId = sync.getPathSegments().get(1);
-    		ContentValues values = createResult(syncId, user);
-    		
     		if (user.picUrl == null) {
-    			mNotFound++;
+    			mNotFound.incrementAndGet();
     			values.put(Results.DESCRIPTION, service.getString(R.string.resultsdescription_picnotfound));
-    			addResult(values);
+    			finishUser(job);
     			return;
     		}
     		
     		// For Android < 2.0, aggregatedId is always the same contactId
-			String contactId = null;
-			String lookup = null;
-			String aggregatedId = null;
 			String name = null;
+			PhoneContact contact = job.contact;
 
 			// For Android 2.x, need to ensure the contact id has not changed
 			if (contact != null) {
-				contactId = aggregatedId = contact.id;
+				job.contactId = job.aggregatedId = contact.id;
 				name = contact.name;
-				contact = mContactUtils.confirmContact(resolver, contact.id, contact.lookup);
+				contact = mContacts.confirmContact(resolver, contact.id, contact.lookup);
 				if (contact != null) {
-					aggregatedId = contact.id;
-					lookup = contact.lookup;
+					job.aggregatedId = contact.id;
+					job.lookup = contact.lookup;
+					if (user.uid != null) {
+						mMatched.put(user.uid, contact.id);
+					}
 				}
 			}
 			
-    		if (contact == null || (!mContactUtils.isContactUpdatable(resolver, aggregatedId) && !service.mOverrideReadOnlyCheck)) {
+    		if (contact == null || (!mContactUtils.isContactUpdatable(resolver, job.aggregatedId) && !service.mOverrideReadOnlyCheck)) {
     			Log.d(TAG, "Contact not found in database.");
-    			mNotFound++;
+    			mNotFound.incrementAndGet();
     			values.put(Results.DESCRIPTION, service.getString(R.string.resultsdescription_notfound));
-    			addResult(values);
+    			finishUser(job);
     			return;
     		}
     		
-    		Log.d(TAG, String.format("Matched to %s with aggregated id %s and lookup %s", name, aggregatedId, lookup));
+    		Log.d(TAG, String.format("Matched to %s with aggregated id %s and lookup %s", name, job.aggregatedId, job.lookup));
     		
     		InputStream is = null;
-    		InputStream friend = null;
-    		byte[] image = null;
-
     		String contactHash = null;
-    		String hash = null;
-
-    		//ContentValues is an immutable object
-    		final ContentValues valuesCopy = new ContentValues(values);
+    		boolean decode = false;
 
     		try {
-    			DBHashes hashes = dbHelper.getHashes(contactId);
-    			is = mContactUtils.getPhoto(resolver, aggregatedId);
+    			job.hashes = dbHelper.getHashes(job.contactId);
+    			is = mContactUtils.getPhoto(resolver, job.aggregatedId);
     			// photo is set, so let's get its hash
     			if (is != null) {
-    				//Log.d(TAG, "CONTACT PIC IS NOT NULL!!");
-    				contactHash = Utils.getMd5Hash(Utils.getByteArrayFromInputStream(is));
+    				job.hasPhoto = true;
+    				contactHash = Utils.getMd5Hash(is);
     			}
 
-    			if (dbHelper.isSyncablePicture(contactId, hashes.updatedHash, contactHash, service.mSkipIfExists)) {
+    			if (dbHelper.isSyncablePicture(job.contactId, job.hashes.updatedHash, contactHash, service.mSkipIfExists)) {
    					try {
-   						String filename =  Uri.parse(user.picUrl).getLastPathSegment();
-   						friend = mCache.get(filename);
-   						if (friend == null) {
-   							Log.d(TAG, "cache miss");
-   							friend = Utils.downloadPictureAsStream(user.picUrl, 2);
-   						}
-   						
-   						image = Utils.getByteArrayFromInputStream(friend);
-   						friend.close();
-   						
    						if (service.mCacheOn) {
-   							mCache.add(filename, image);
+   							// jobs for friends sharing a picture wait on one download
+   							job.buffer = mCache.getOrFetch(user.picUrl, new PhotoCache.Loader() {
+   								public PooledBuffer load(String url) throws IOException {
+   									return download(job);
+   								}
+   							});
+   						} else {
+   							job.buffer = mCache.getBuffer(user.picUrl);
+   							if (job.buffer == null) {
+   								job.buffer = download(job);
+   							}
    						}
    						
-   						hash = Utils.getMd5Hash(image);
+   						if (job.buffer != null) {
+   							job.hash = Utils.getMd5Hash(job.buffer);
+   						} else if (job.notModified) {
+   							Log.d(TAG, "picture not modified");
+   						}
    					} catch (Exception e) {
    						e.printStackTrace();
    					}
 
-    				if (image != null) {
-    					final Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
-    					// picture is a new one and we should sync it
-    					if ((hash != null && !hash.equals(hashes.networkHash)) || is == null) {
-    						String updatedHash = hash;
-    						
-    						if (service.mCropSquare) {
-    							image = Utils.bitmapToPNG(Utils.centerCrop(bitmap, 96, 96));
-    							updatedHash = Utils.getMd5Hash(image);
-    						}
-    						mContactUtils.updatePhoto(resolver, image, aggregatedId, service.mAllowGoogleSync, false);
-    						dbHelper.updateHashes(aggregatedId, lookup, hash, updatedHash);
-    						dbHelper.updateLink(aggregatedId, lookup, user, service.getSocialNetworkName());
-    						mUpdated++;
-    					} else {
-    						mSkipped++;
-    						valuesCopy.put(Results.DESCRIPTION, 
-    								service.getString(R.string.resultsdescription_skippedunchanged));
-    					}
-    					// send picture to listener for progress display
-						
-						MainHandler handler = service.mMainHandler;
-						if (handler != null) {
-							handler.post(new Runnable() {
-								public void run() {
-									SyncServiceListener listener = service.mListener;
-									if (listener != null) {
-		    							listener.onContactSynced(user.name, bitmap, valuesCopy.getAsString(Results.DESCRIPTION));
-		    						}
-								}
-							});
-						} else {
-							// try to force GC
-							bitmap.recycle();
-						}
-						
-    					valuesCopy.put(Results.CONTACT_ID, aggregatedId);
-    					valuesCopy.put(Results.LOOKUP_KEY, lookup);
+    				if (job.notModified) {
+    					mSkipped.incrementAndGet();
+    					values.put(Results.DESCRIPTION,
+    							service.getString(R.string.resultsdescription_skippedunchanged));
+    					values.put(Results.CONTACT_ID, job.aggregatedId);
+    					values.put(Results.LOOKUP_KEY, job.lookup);
+    				} else if (job.buffer != null) {
+    					decode = true;
     				} else {
-    					valuesCopy.put(Results.DESCRIPTION, 
+    					values.put(Results.DESCRIPTION,
     							service.getString(R.string.resultsdescription_downloadfailed));
-    					//break;
     				}
     			} else {
-    				mSkipped++;
-    				valuesCopy.put(Results.DESCRIPTION, 
+    				mSkipped.incrementAndGet();
+    				values.put(Results.DESCRIPTION,
     						service.getString(R.string.resultsdescription_skippedexists));
     			}
     		} catch (Exception e) {
-    			valuesCopy.put(Results.DESCRIPTION, service.getString(R.string.resultsdescription_error));
+    			values.put(Results.DESCRIPTION, service.getString(R.string.resultsdescription_error));
     		} finally {
-    			addResult(valuesCopy);
     			try {
 	    			if (is != null) {
 	    				is.close();
 	    			}
     			} catch(IOException e) {}
     		}
-    	}
+
+    		if (!decode) {
+    			finishUser(job);
+    			return;
+    		}
+
+    		mDecodePool.execute(new StageTask(job) {
+    			protected void runStage() {
+    				decodeStage(job);
+    			}
+    		});
+        }
+
+        // Downloads the friend's picture, asking the server whether the one we
+        // last synced changed as long as the contact still has it. Returns null
+        // when it hasn't or the download failed.
+        private PooledBuffer download(SyncJob job) throws IOException
+        {
+        	Log.d(TAG, "cache miss");
+        	DBHashes hashes = job.hashes;
+        	String url = job.user.picUrl;
+        	boolean revalidate = job.hasPhoto 
+        		&& hashes.networkHash != null 
+        		&& url.equals(hashes.picUrl);
+        	PictureDownload download = Utils.downloadPicture(url, 
+        			revalidate ? hashes.etag : null, 
+        			revalidate ? hashes.lastModified : null, 
+        			2);
+        	if (download == null) {
+        		return null;
+        	}
+
+        	job.downloaded = true;
+        	job.etag = download.etag;
+        	job.lastModified = download.lastModified;
+        	if (download.notModified) {
+        		job.notModified = true;
+        		return null;
+        	}
+
+        	try {
+        		return BufferPool.getDefault().read(download.stream, download.length);
+        	} finally {
+        		// hands the connection back to the pool
+        		download.stream.close();
+        	}
+        }
+
+        // Decodes the downloaded picture and, if it changed, prepares the bytes
+        // that will be written to the contact
+        private void decodeStage(final SyncJob job)
+        {
+        	final SyncService service = mService.get();
+        	if (isCancelled(service)) {
+        		failUser(job, R.string.syncservice_canceled);
+        		return;
+        	}
+
+        	try {
+        		// High quality pictures can be several megapixels, so never decode
+        		// much more than what is cropped or shown
+        		int size = service.mCropSquare ? CROP_SIZE : PREVIEW_SIZE;
+        		job.bitmap = Utils.decodeBuffer(job.buffer, size, size, Bitmap.Config.RGB_565);
+        		// picture is a new one and we should sync it
+        		if ((job.hash != null && !job.hash.equals(job.hashes.networkHash)) || !job.hasPhoto) {
+        			job.changed = true;
+        			job.updatedHash = job.hash;
+    						
+        			if (service.mCropSquare) {
+        				Bitmap cropped = Utils.centerCrop(job.bitmap, CROP_SIZE, CROP_SIZE, mCropTargets.get());
+        				job.image = Utils.bitmapToPNG(cropped);
+        				if (cropped != job.bitmap) {
+        					mCropTargets.set(cropped);
+        				}
+        				job.updatedHash = Utils.getMd5Hash(job.image);
+        			} else {
+        				// the photo batch holds on to it until it is written
+        				job.image = job.buffer.toByteArray();
+        			}
+        		}
+        	} catch (Exception e) {
+        		job.values.put(Results.DESCRIPTION, service.getString(R.string.resultsdescription_error));
+        		finishUser(job);
+        		return;
+        	}
+
+        	job.buffer.release();
+        	job.buffer = null;
+
+        	mWritePool.execute(new StageTask(job) {
+    			protected void runStage() {
+    				writeStage(job);
+    			}
+    		});
+        }
+
+        // Hands the picture to the photo batch. The new hashes and link are
+        // recorded, and the job finished, once the batch has written it.
+        private void writeStage(final SyncJob job)
+        {
+        	final SyncService service = mService.get();
+        	if (isCancelled(service)) {
+        		failUser(job, R.string.syncservice_canceled);
+        		return;
+        	}
+        	final ContentResolver resolver = service.getContentResolver();
+    		if (resolver == null) {
+    			failUser(job, R.string.resultsdescription_error);
+    			return;
+    		}
+
+    		final ContentValues values = job.values;
+    		boolean pending = false;
+
+        	try {
+        		if (!job.changed) {
+        			mSkipped.incrementAndGet();
+        			values.put(Results.DESCRIPTION,
+        					service.getString(R.string.resultsdescription_skippedunchanged));
+        			// the contact already has this picture
+        			if (job.downloaded) {
+        				dbHelper.updateValidators(job.aggregatedId, job.lookup, job.user.picUrl, job.etag, job.lastModified);
+        			}
+        		}
+
+        		// send picture to listener for progress display
+        		final Bitmap bitmap = job.bitmap;
+        		final String name = job.user.name;
+        		final String description = values.getAsString(Results.DESCRIPTION);
+						
+        		MainHandler handler = service.mMainHandler;
+        		if (handler != null) {
+        			handler.post(new Runnable() {
+        				public void run() {
+        					SyncServiceListener listener = service.mListener;
+        					if (listener != null) {
+        						listener.onContactSynced(name, bitmap, description);
+        					}
+        				}
+        			});
+        		} else if (bitmap != null) {
+        			// try to force GC
+        			bitmap.recycle();
+        		}
+						
+        		values.put(Results.CONTACT_ID, job.aggregatedId);
+        		values.put(Results.LOOKUP_KEY, job.lookup);
+
+        		if (job.changed) {
+        			// may be written, and the job finished, before add returns
+        			pending = true;
+        			mPhotoBatch.add(job.aggregatedId, job.image, new PhotoBatch.Callback() {
+        				public void onWritten(PhotoBatch.Entry entry, boolean success) {
+        					photoWritten(job, success);
+        				}
+        			});
+        		}
+        	} catch (Exception e) {
+        		values.put(Results.DESCRIPTION, service.getString(R.string.resultsdescription_error));
+        		pending = false;
+        	} finally {
+        		if (!pending) {
+        			finishUser(job);
+        		}
+        	}
+        }
+
+        // Records the new hashes, link and validators of a job whose photo
+        // the batch wrote. A photo that didn't reach the contact records 
+        // nothing, as the snapshot may write its rows back at any time, and
+        // the next sync must not take the picture as unchanged.
+        private void photoWritten(SyncJob job, boolean success)
+        {
+        	final SyncService service = mService.get();
+        	if (!success || service == null) {
+        		failUser(job, R.string.resultsdescription_error);
+        		return;
+        	}
+
+        	try {
+        		dbHelper.updateHashes(job.aggregatedId, job.lookup, job.hash, job.updatedHash);
+        		dbHelper.updateLink(job.aggregatedId, job.lookup, job.user, service.getSocialNetworkName());
+        		if (job.downloaded) {
+        			dbHelper.updateValidators(job.aggregatedId, job.lookup, job.user.picUrl, job.etag, job.lastModified);
+        		}
+        		mUpdated.incrementAndGet();
+        	} catch (Exception e) {
+        		Log.e(TAG, android.util.Log.getStackTraceString(e));
+        		failUser(job, R.string.resultsdescription_error);
+        		return;
+        	}
+
+        	finishUser(job);
+        }
+
+        // Ends a job that can't go on, with description as its result
+        private void failUser(SyncJob job, int description)
+        {
+        	final SyncService service = mService.get();
+        	if (service != null) {
+        		job.values.put(Results.DESCRIPTION, service.getString(description));
+        	}
+        	finishUser(job);
+        }
+
+        // Writes the photos still in the batch once the write stage stopped
+        private void flushPhotos()
+        {
+        	if (mPhotoBatch == null) {
+        		return;
+        	}
+
+        	try {
+        		if (mWritePool != null && !mWritePool.awaitTermination(10, TimeUnit.SECONDS)) {
+        			Log.w(TAG, "write stage did not stop");
+        		}
+        	} catch (InterruptedException e) {
+        		Thread.currentThread().interrupt();
+        	}
+
+        	try {
+        		mPhotoBatch.flush();
+        	} catch (Exception e) {
+        		Log.e(TAG, android.util.Log.getStackTraceString(e));
+        	}
+        }
+
+        private void finishUser(SyncJob job)
+        {
+        	synchronized (job) {
+        		if (job.finished) {
+        			return;
+        		}
+        		job.finished = true;
+        	}
+
+        	final SyncService service = mService.get();
+        	if (service != null) {
+        		String description = job.values.getAsString(Results.DESCRIPTION);
+        		if (service.getString(R.string.resultsdescription_downloadfailed).equals(description) 
+        				|| service.getString(R.string.resultsdescription_error).equals(description)
+        				|| service.getString(R.string.syncservice_canceled).equals(description)) {
+        			mRetry.add(job.user.uid);
+        		}
+        	}
+
+        	// let go of the picture as early as possible
+        	if (job.buffer != null) {
+        		job.buffer.release();
+        		job.buffer = null;
+        	}
+        	job.image = null;
+        	job.bitmap = null;
+
+        	addResult(job.values);
+
+        	int processed = mProcessed.incrementAndGet();
+        	publishProgress((int) ((processed / (float) mTotal) * 100), processed, mTotal);
+        }
 
         private void addResult (ContentValues value)
         {
@@ -477,6 +894,54 @@ public abstract class SyncService extends Service {
     		return values;
         }
         
+		// Identifies the settings a sync ran with
+		private String getSyncState(SyncService service)
+		{
+			SyncMyPixPreferences prefs = new SyncMyPixPreferencesReal(service.getApplicationContext());
+			boolean[] flags = {
+					service.mAllowGoogleSync,
+					service.mSkipIfExists,
+					service.mOverrideReadOnlyCheck,
+					service.mMaxQuality,
+					service.mCropSquare,
+					service.mIntelliMatch,
+					service.mPhoneOnly,
+					service.mConsiderDiminutives,
+					prefs.getSpanishNames(),
+					prefs.getRomanizeGreek()
+			};
+
+			StringBuilder state = new StringBuilder();
+			for (boolean flag : flags) {
+				state.append(flag ? '1' : '0');
+			}
+			return state.toString();
+		}
+
+		// Whether the contact the friend was matched to last time changed
+		// since, or for a friend matched to none, whether a contact was
+		// added or renamed that it might match now
+		private boolean contactChanged(FriendFingerprint friend, boolean namesChanged)
+		{
+			if (friend.contactId == null) {
+				return namesChanged;
+			}
+			return mContacts.getContactVersion(friend.contactId) != friend.contactVersion;
+		}
+
+		// The matcher's contacts and diminutives change with the names in
+		// the mirror and with the installed version of the app
+		private String getMatcherVersion(SyncService service) throws NameNotFoundException
+		{
+			int app = service.getPackageManager().getPackageInfo(service.getPackageName(), 0).versionCode;
+			return mContacts.getNamesVersion() + "/" + app;
+		}
+
+		private static boolean sameText(String a, String b)
+		{
+			return a == null ? b == null : a.equals(b);
+		}
+
 		@Override
 		protected Long doInBackground(List<SocialNetworkUser>... users) {
 			
@@ -499,23 +964,95 @@ public abstract class SyncService extends Service {
     		
 			synchronized(mSyncLock) {
 				try {
-					matcher = NameMatcherFactory.create(
-							service.getApplicationContext(),
-							new SyncMyPixPreferencesReal(service.getApplicationContext()),
-							service.getResources().openRawResource(R.raw.diminutives)
-					);
+					final SharedPreferences settings = service.getSharedPreferences(SettingsActivity.PREFS_NAME, 0);
+					final String stateKey = SYNC_STATE_PREFIX + source;
+					final String namesKey = SYNC_NAMES_PREFIX + source;
+					final String state = getSyncState(service);
+					final List<SocialNetworkUser> friends = new ArrayList<SocialNetworkUser>(userList);
+
+					mContacts.refresh();
+					final long names = mContacts.getNamesVersion();
+					final boolean namesChanged = names != settings.getLong(namesKey, -1);
+
+					// An incremental sync only processes the friends that are new or
+					// changed since the last one, or whose contacts changed, which is
+					// only safe while the settings are the same as they were then
+					Map<String, FriendFingerprint> previous = null;
+					if (service.mIncremental && state.equals(settings.getString(stateKey, null))) {
+						previous = dbHelper.getFriendFingerprints(source);
+						if (previous.isEmpty()) {
+							previous = null;
+						}
+					}
+
+					int unchanged = 0;
+					List<String> stale = null;
+					if (previous != null) {
+						List<SocialNetworkUser> changed = new ArrayList<SocialNetworkUser>();
+						stale = new ArrayList<String>();
+						for (SocialNetworkUser user : userList) {
+							FriendFingerprint friend = previous.remove(user.uid);
+							if (friend != null && sameText(friend.picUrl, user.picUrl) && sameText(friend.name, user.name)
+									&& !contactChanged(friend, namesChanged)) {
+								unchanged++;
+								if (friend.contactId != null) {
+									mMatched.put(user.uid, friend.contactId);
+								}
+							} else {
+								changed.add(user);
+								stale.add(user.uid);
+							}
+						}
+						// friends that are gone
+						stale.addAll(previous.keySet());
+						userList = changed;
+						Log.d(TAG, String.format("incremental sync of %d friends, %d unchanged", userList.size(), unchanged));
+					}
+
+					if (!userList.isEmpty()) {
+						matcher = NameMatcherFactory.create(
+								mContacts,
+								getMatcherVersion(service),
+								new SyncMyPixPreferencesReal(service.getApplicationContext()),
+								service.getResources().openRawResource(R.raw.diminutives),
+								new File(service.getFilesDir(), MATCHER_SNAPSHOT)
+						);
+					}
 					
 					//matcher.dump();
 					
-					// clear previous results, if any
-					//mCache.deleteAll();
-					dbHelper.deleteResults(source);
+					if (previous == null) {
+						// clear previous results, if any
+						//mCache.deleteAll();
+						dbHelper.deleteResults(source);
+					}
+					// answer the per-friend link and hash lookups from memory
+					dbHelper.beginSnapshot(source);
 					ContentValues syncValues = new ContentValues();
 					syncValues.put(Sync.SOURCE, source);
 					Uri sync = resolver.insert(Sync.CONTENT_URI, syncValues);
 	
+					if (previous != null) {
+						// keep the results of the friends that aren't processed again
+						String syncId = sync.getPathSegments().get(1);
+						dbHelper.carryOverResults(source, syncId);
+						dbHelper.deleteResults(syncId, stale);
+						mSkipped.addAndGet(unchanged);
+					}
+
 					index = 1;
 					size = userList.size();
+					mTotal = size;
+
+					mDownloadPool = createStage("SyncDownload", DOWNLOAD_THREADS);
+					mDecodePool = createStage("SyncDecode", DECODE_THREADS);
+					mWritePool = createStage("SyncWrite", WRITE_THREADS);
+					mPhotoBatch = mContactUtils.createPhotoBatch(resolver, PHOTO_BATCH_SIZE, service.mAllowGoogleSync);
+
+					// links are only written by the write stage, so contacts matched
+					// earlier in this sync must be tracked here to keep two friends
+					// from claiming the same contact
+					final Set<String> claimed = new HashSet<String>();
 					
 					for(int i=size-1; i>=0; i--) {
 						SocialNetworkUser user = userList.remove(i);
@@ -528,15 +1065,21 @@ public abstract class SyncService extends Service {
 							} else {
 								contact = matcher.exactMatch(user.name);
 							}
-							if (contact != null && dbHelper.hasLink(contact.id, service.getSocialNetworkName())) {
+							if (contact != null && (claimed.contains(contact.id) ||
+									dbHelper.hasLink(contact.id, service.getSocialNetworkName()))) {
 								contact = null;
 							}
 						} else {
 							contact = linked;
 						}
 						
-						processUser(user, contact, sync);
-						publishProgress((int) ((index++ / (float) size) * 100), index, size);
+						if (contact != null) {
+							claimed.add(contact.id);
+						}
+
+						// blocks while the download stage is saturated
+						submitUser(user, contact, sync);
+						index++;
 	
 						if (service.mCancel) {
 							if (handler != null) {
@@ -545,17 +1088,45 @@ public abstract class SyncService extends Service {
 										0));
 							}
 							break;
-						} else if (service.mResultsList.size() == service.RESULTS_THRESH) {
+						} else if (service.mResultsList.size() >= service.RESULTS_THRESH) {
 							service.updateResults(false);
 						}
 					}
 	
+					// drain the stages in order, so each one is finished feeding
+					// the next before that one is shut down
+					awaitStage(mDownloadPool);
+					awaitStage(mDecodePool);
+					awaitStage(mWritePool);
+					mPhotoBatch.flush();
+					dbHelper.endSnapshot();
+
 					syncValues.clear();
 					syncValues.put(Sync.DATE_COMPLETED, System.currentTimeMillis());
-					syncValues.put(Sync.UPDATED, mUpdated);
-					syncValues.put(Sync.NOT_FOUND, mNotFound);
-					syncValues.put(Sync.SKIPPED, mSkipped);
+					syncValues.put(Sync.UPDATED, mUpdated.get());
+					syncValues.put(Sync.NOT_FOUND, mNotFound.get());
+					syncValues.put(Sync.SKIPPED, mSkipped.get());
 					resolver.update(sync, syncValues, null, null);
+
+					if (!service.mCancel) {
+						// the photos written changed the contacts, and their change
+						// notifications may still be on the way
+						mContacts.markDirty();
+						mContacts.refresh();
+						Map<String, Long> versions = new HashMap<String, Long>();
+						synchronized (mMatched) {
+							for (String id : mMatched.values()) {
+								versions.put(id, mContacts.getContactVersion(id));
+							}
+						}
+
+						// friends whose picture couldn't be fetched are left out,
+						// so the next incremental sync tries them again
+						dbHelper.replaceFriends(source, friends, mRetry, mMatched, versions, System.currentTimeMillis());
+						Utils.setString(settings, stateKey, state);
+						// the names the friends without a contact were matched against
+						Utils.setLong(settings, namesKey, names);
+					}
 					
 					total = index;
 				
@@ -566,15 +1137,23 @@ public abstract class SyncService extends Service {
 							0));
 	
 				} finally {
+					abortStage(mDownloadPool);
+					abortStage(mDecodePool);
+					abortStage(mWritePool);
+					// the photos still in the batch record their hashes as
+					// they are written, which must happen before the snapshot
+					// is kept
+					flushPhotos();
+					dbHelper.endSnapshot();
+
 					if (matcher != null) {
 						matcher.destroy();
 					}
 					if (userList != null) {
 						userList.clear();
 					}
-					if (mCache != null) {
-						mCache.releaseResources();
-					}
+					// the pool only pays off while pictures are being read
+					BufferPool.getDefault().trim();
 					handler.post(handler.resetExecuting);
 				}
 			}
@@ -650,8 +1229,18 @@ public abstract class SyncService extends Service {
     
     private void updateResults(boolean finish)
     {
-    	if (!mResultsList.isEmpty()) {
-			new UpdateResultsTable(this, mResultsList, finish).start();
+    	// hand the pending results off, so the sync pipeline can keep adding
+    	// to mResultsList while they are written
+    	List<ContentValues> pending;
+    	synchronized (mResultsList) {
+    		pending = new ArrayList<ContentValues>(mResultsList);
+    		mResultsList.clear();
+    	}
+    	
+    	if (!pending.isEmpty()) {
+			new UpdateResultsTable(this, pending, finish).start();
+		} else if (finish) {
+			mMainHandler.post(mMainHandler.finish);
 		}
     }
     
@@ -675,6 +1264,7 @@ public abstract class SyncService extends Service {
 		mExecuting = true;
 		mStarted = true;
 		mCancel = false;
+		mIncremental = intent != null && intent.getBooleanExtra(EXTRA_INCREMENTAL, false);
 
 		updateStatus(GETTING_FRIENDS);
 		getPreferences();
@@ -23,6 +23,8 @@
 package com.nloko.android.syncmypix.contactutils;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.nloko.android.syncmypix.PhoneContact;
 
@@ -31,8 +33,11 @@ import android.content.ContentValues;
 import android.net.Uri;
 import android.provider.Contacts.People;
 import android.provider.Contacts.Photos;
+import android.util.Log;
 
 public class ContactProxy implements IContactProxy {
+	private final static String TAG = "ContactProxy";
+	
 	public InputStream getPhoto(ContentResolver cr, String id) {
 		if (cr == null || id == null) {
 			return null;
@@ -70,6 +75,25 @@ public class ContactProxy implements IContactProxy {
         cr.update(photoUri, values, null, null);
 	}
 	
+	// no batch operations before Android 2.0
+	public List<PhotoBatch.Entry> updatePhotos(ContentResolver cr, List<PhotoBatch.Entry> photos, boolean markDirty) {
+		List<PhotoBatch.Entry> written = new ArrayList<PhotoBatch.Entry>();
+		if (cr == null || photos == null) {
+			return written;
+		}
+		
+		for (PhotoBatch.Entry photo : photos) {
+			try {
+				updatePhoto(cr, photo.image, photo.id, markDirty, false);
+				written.add(photo);
+			} catch (Exception e) {
+				Log.e(TAG, "Photo update failed: " + e.getMessage());
+			}
+		}
+		
+		return written;
+	}
+	
 	public String getLookup(ContentResolver resolver, Uri contact) {
 		return null;
 	}
@@ -25,12 +25,18 @@ package com.nloko.android.syncmypix.contactutils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.android.providers.contacts.PhotoStore;
 import com.nloko.android.syncmypix.MainActivity;
 import com.nloko.android.syncmypix.PhoneContact;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -44,6 +50,7 @@ import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
@@ -138,7 +145,7 @@ public class ContactProxy2 implements IContactProxy {
 					//	+ " = " + photoRow, null);
 					//Log.d(TAG, "deleting");
 					//cr.delete(uri, null, null);
-					cr.update(uri, values, null, null);
+					cr.update(markDirty ? uri : updateUri, values, null, null);
 				} else {
 					//cr.update 
 					//	(builder.build(), values, ContactsContract.Data._ID 
@@ -177,7 +184,7 @@ public class ContactProxy2 implements IContactProxy {
 		
 	}
 	
-	private void ensureUpdatableLoaded() {
+	private synchronized void ensureUpdatableLoaded() {
 		if (mUpdatable == null) {
 			mUpdatable = new HashMap<String, Boolean>();
 			SyncAdapterType[] types = ContentResolver.getSyncAdapterTypes();
@@ -188,6 +195,187 @@ public class ContactProxy2 implements IContactProxy {
 		}
 	}
 	
+	private boolean isUpdatableAccount(String accountType) {
+		ensureUpdatableLoaded();
+		
+		// apparently HTC sticks random account types into raw contacts
+		// must account for them
+		return accountType == null ||
+			accountType.length() == 0 ||
+			//accountType.toLowerCase().contains("htc.android.mail") ||
+			accountType.toLowerCase().contains("htc.android.pcsc") ||
+			(mUpdatable.containsKey(accountType) && mUpdatable.get(accountType));
+	}
+	
+	// Same as queryForRawContactId, for many contacts in one query.
+	// Contacts without an updatable raw contact are left out of the map.
+	private Map<String, Long> queryForRawContactIds(ContentResolver cr, List<PhotoBatch.Entry> photos) {
+		Map<String, Long> rawContactIds = new HashMap<String, Long>();
+		
+		StringBuilder ids = new StringBuilder();
+		for (PhotoBatch.Entry photo : photos) {
+			if (ids.length() > 0) {
+				ids.append(',');
+			}
+			ids.append(Long.parseLong(photo.id));
+		}
+		
+		Cursor cursor = cr.query(RawContacts.CONTENT_URI,
+				new String[] { RawContacts._ID, RawContacts.CONTACT_ID, RawContacts.ACCOUNT_TYPE },
+				RawContacts.CONTACT_ID + " IN (" + ids + ")", null, null);
+		if (cursor == null) {
+			return rawContactIds;
+		}
+		
+		try {
+			int idIdx = cursor.getColumnIndex(RawContacts._ID);
+			int contactIdIdx = cursor.getColumnIndex(RawContacts.CONTACT_ID);
+			int accountTypeIdx = cursor.getColumnIndex(RawContacts.ACCOUNT_TYPE);
+			while (cursor.moveToNext()) {
+				String contactId = cursor.getString(contactIdIdx);
+				if (!rawContactIds.containsKey(contactId) && isUpdatableAccount(cursor.getString(accountTypeIdx))) {
+					rawContactIds.put(contactId, cursor.getLong(idIdx));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return rawContactIds;
+	}
+	
+	// Maps raw contact ids to the ids of their existing photo data rows
+	private Map<Long, Long> queryForPhotoRows(ContentResolver cr, Collection<Long> rawContactIds) {
+		Map<Long, Long> photoRows = new HashMap<Long, Long>();
+		if (rawContactIds.isEmpty()) {
+			return photoRows;
+		}
+		
+		StringBuilder ids = new StringBuilder();
+		for (Long id : rawContactIds) {
+			if (ids.length() > 0) {
+				ids.append(',');
+			}
+			ids.append(id);
+		}
+		
+		String where = Data.RAW_CONTACT_ID + " IN (" + ids + ") AND " + 
+			Data.MIMETYPE + "=='" + Photo.CONTENT_ITEM_TYPE + "'";
+		Cursor cursor = cr.query(Data.CONTENT_URI, 
+				new String[] { Data._ID, Data.RAW_CONTACT_ID }, where, null, null);
+		if (cursor == null) {
+			return photoRows;
+		}
+		
+		try {
+			while (cursor.moveToNext()) {
+				photoRows.put(cursor.getLong(1), cursor.getLong(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return photoRows;
+	}
+	
+	// Writes the photos in one applyBatch, rather than streaming each one
+	// to RawContacts.DisplayPhoto like updatePhoto does. The contacts 
+	// provider makes the thumbnail and the display photo from the PHOTO 
+	// column of the row, so the contact ends up with the same pictures.
+	public List<PhotoBatch.Entry> updatePhotos(ContentResolver cr, List<PhotoBatch.Entry> photos, boolean markDirty) {
+		List<PhotoBatch.Entry> written = new ArrayList<PhotoBatch.Entry>();
+		if (cr == null || photos == null || photos.isEmpty()) {
+			return written;
+		}
+		
+		Map<String, Long> rawContactIds = queryForRawContactIds(cr, photos);
+		Map<Long, Long> photoRows = queryForPhotoRows(cr, rawContactIds.values());
+		
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(photos.size());
+		// the photo each operation writes
+		List<PhotoBatch.Entry> batched = new ArrayList<PhotoBatch.Entry>(photos.size());
+		for (PhotoBatch.Entry photo : photos) {
+			Long rawContactId = rawContactIds.get(photo.id);
+			if (rawContactId == null) {
+				continue;
+			}
+			
+			Long photoRow = photoRows.get(rawContactId);
+			ContentProviderOperation.Builder builder;
+			if (photoRow != null) {
+				builder = ContentProviderOperation.newUpdate(getDataUri(photoRow, markDirty));
+			} else if (photo.image != null) {
+				builder = ContentProviderOperation.newInsert(getDataUri(markDirty))
+					.withValue(Data.RAW_CONTACT_ID, rawContactId)
+					.withValue(Data.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
+			} else {
+				// nothing to clear
+				written.add(photo);
+				continue;
+			}
+			
+			// every contact is a yield point, so the provider can let other 
+			// clients like the dialer in between our writes
+			operations.add(builder
+					.withValue(Data.IS_SUPER_PRIMARY, 1)
+					.withValue(Photo.PHOTO, photo.image)
+					.withYieldAllowed(true)
+					.build());
+			batched.add(photo);
+		}
+		
+		if (operations.isEmpty()) {
+			return written;
+		}
+		
+		try {
+			ContentProviderResult[] results = cr.applyBatch(ContactsContract.AUTHORITY, operations);
+			for (int i = 0; i < results.length; i++) {
+				if (isApplied(results[i])) {
+					written.add(batched.get(i));
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Batch photo update failed, falling back to single updates: " + e.getMessage());
+			for (int i = 0; i < operations.size(); i++) {
+				ArrayList<ContentProviderOperation> single = new ArrayList<ContentProviderOperation>(1);
+				single.add(operations.get(i));
+				try {
+					if (isApplied(cr.applyBatch(ContactsContract.AUTHORITY, single)[0])) {
+						written.add(batched.get(i));
+					}
+				} catch (Exception e1) {
+					Log.e(TAG, "Photo update failed: " + e1.getMessage());
+				}
+			}
+		}
+		
+		return written;
+	}
+	
+	// an update that found no row, such as one deleted since it was looked up,
+	// wrote nothing
+	private static boolean isApplied(ContentProviderResult result) {
+		return result.uri != null || (result.count != null && result.count > 0);
+	}
+	
+	// Photo rows written without markDirty are written as a sync adapter, 
+	// so the change isn't synced back to the contact's account
+	private static Uri getDataUri(long photoRow, boolean markDirty) {
+		return asSyncAdapter(ContentUris.withAppendedId(ContactsContract.Data.CONTENT_URI, photoRow), markDirty);
+	}
+	
+	private static Uri getDataUri(boolean markDirty) {
+		return asSyncAdapter(ContactsContract.Data.CONTENT_URI, markDirty);
+	}
+	
+	private static Uri asSyncAdapter(Uri uri, boolean markDirty) {
+		if (markDirty) {
+			return uri;
+		}
+		return uri.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+	}
+	
 	private long queryForRawContactId(ContentResolver cr, long contactId) {
         Cursor rawContactIdCursor = null;
         long rawContactId = -1;
@@ -216,15 +404,7 @@ public class ContactProxy2 implements IContactProxy {
 		            		rawContactId = rawContactIdCursor.getLong(0);
 		            	} */
 		            	
-		            	ensureUpdatableLoaded();
-		            	
-		            	// apparently HTC sticks random account types into raw contacts
-		            	// must account for them
-		            	if (accountType == null ||
-		            		accountType.length() == 0 ||
-		            		//accountType.toLowerCase().contains("htc.android.mail") ||
-	            			accountType.toLowerCase().contains("htc.android.pcsc") ||
-		            		(mUpdatable.containsKey(accountType) && mUpdatable.get(accountType))) {
+		            	if (isUpdatableAccount(accountType)) {
 		            		rawContactId = rawContactIdCursor.getLong(0);
 		            	}
 	            	}
@@ -23,6 +23,7 @@
 package com.nloko.android.syncmypix.contactutils;
 
 import java.io.InputStream;
+import java.util.List;
 
 import com.nloko.android.syncmypix.PhoneContact;
 
@@ -53,6 +54,18 @@ public final class ContactUtils {
 		mInstance.updatePhoto(cr, image, id, markDirty, fromthumb);
 	}
 	
+	public List<PhotoBatch.Entry> updatePhotos (ContentResolver cr, List<PhotoBatch.Entry> photos, boolean markDirty)
+	{
+		return mInstance.updatePhotos(cr, photos, markDirty);
+	}
+	
+	// Photos added to the returned batch are written batchSize at a time.
+	// Call flush() when done to write whatever is left.
+	public PhotoBatch createPhotoBatch (ContentResolver cr, int batchSize, boolean markDirty)
+	{
+		return new PhotoBatch(mInstance, cr, batchSize, markDirty);
+	}
+	
 	public PhoneContact confirmContact(ContentResolver cr, String id, String lookup) {
 		return mInstance.confirmContact(cr, id, lookup);
 	}
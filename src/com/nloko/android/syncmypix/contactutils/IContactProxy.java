@@ -23,6 +23,7 @@
 package com.nloko.android.syncmypix.contactutils;
 
 import java.io.InputStream;
+import java.util.List;
 
 import com.nloko.android.syncmypix.PhoneContact;
 
@@ -34,6 +35,8 @@ public interface IContactProxy {
 	boolean isContactUpdatable(ContentResolver cr, String id);
 	PhoneContact confirmContact(ContentResolver cr, String id, String lookup);
 	void updatePhoto (ContentResolver cr, byte[] image, String id, boolean markDirty, boolean fromThumb);
+	// returns the photos that reached their contacts
+	List<PhotoBatch.Entry> updatePhotos (ContentResolver cr, List<PhotoBatch.Entry> photos, boolean markDirty);
 	Uri getContentUri();
 	String getLookup(ContentResolver cr, Uri contact);
 }
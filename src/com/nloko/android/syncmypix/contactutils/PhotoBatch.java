@@ -0,0 +1,166 @@
+//
+//    PhotoBatch.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.nloko.android.syncmypix.contactutils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.nloko.android.Log;
+
+import android.content.ContentResolver;
+
+// Collects pending contact photo updates and hands them to the contact proxy
+// in chunks, so a sync costs a few transactions instead of several
+// round trips per contact.
+public final class PhotoBatch {
+	private static final String TAG = "PhotoBatch";
+
+	// a whole chunk travels in one binder transaction, which is limited to 1MB
+	public static final int MAX_BATCH_BYTES = 512 * 1024;
+
+	// Told whether a photo reached its contact, once the chunk it was
+	// added to has been written
+	public interface Callback {
+		void onWritten(Entry entry, boolean success);
+	}
+
+	public static final class Entry {
+		public final String id;
+		public final byte[] image;
+		public final Callback callback;
+
+		public Entry(String id, byte[] image, Callback callback) {
+			this.id = id;
+			this.image = image;
+			this.callback = callback;
+		}
+	}
+
+	private final IContactProxy mProxy;
+	private final ContentResolver mResolver;
+	private final int mBatchSize;
+	private final boolean mMarkDirty;
+
+	private final List<Entry> mPending = new ArrayList<Entry>();
+	private int mPendingBytes = 0;
+	private int mWritten = 0;
+
+	PhotoBatch(IContactProxy proxy, ContentResolver cr, int batchSize, boolean markDirty) {
+		if (proxy == null) {
+			throw new IllegalArgumentException("proxy");
+		} else if (cr == null) {
+			throw new IllegalArgumentException("cr");
+		} else if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize");
+		}
+
+		mProxy = proxy;
+		mResolver = cr;
+		mBatchSize = batchSize;
+		mMarkDirty = markDirty;
+	}
+
+	public synchronized void add(String id, byte[] image) {
+		add(id, image, null);
+	}
+
+	public synchronized void add(String id, byte[] image, Callback callback) {
+		if (id == null) {
+			throw new IllegalArgumentException("id");
+		}
+
+		Entry entry = new Entry(id, image, callback);
+		int length = image == null ? 0 : image.length;
+		if (length > MAX_BATCH_BYTES) {
+			// too big for a transaction, so stream it to the contact instead
+			boolean success = false;
+			try {
+				mProxy.updatePhoto(mResolver, image, id, mMarkDirty, false);
+				mWritten++;
+				success = true;
+			} catch (RuntimeException e) {
+				Log.e(TAG, "photo update failed: " + e.getMessage());
+			}
+			report(entry, success);
+			return;
+		}
+
+		if (mPendingBytes + length > MAX_BATCH_BYTES) {
+			flush();
+		}
+
+		mPending.add(entry);
+		mPendingBytes += length;
+
+		if (mPending.size() >= mBatchSize) {
+			flush();
+		}
+	}
+
+	// Every photo pending is reported to its callback, as written or not,
+	// even when the write fails as a whole
+	public synchronized void flush() {
+		if (mPending.isEmpty()) {
+			return;
+		}
+
+		Log.d(TAG, String.format("flushing %d photos (%d bytes)", mPending.size(), mPendingBytes));
+		List<Entry> photos = new ArrayList<Entry>(mPending);
+		mPending.clear();
+		mPendingBytes = 0;
+
+		Set<Entry> written = new HashSet<Entry>();
+		try {
+			written.addAll(mProxy.updatePhotos(mResolver, photos, mMarkDirty));
+		} catch (RuntimeException e) {
+			Log.e(TAG, "photo batch failed: " + e.getMessage());
+		}
+		mWritten += written.size();
+
+		for (Entry entry : photos) {
+			report(entry, written.contains(entry));
+		}
+	}
+
+	private void report(Entry entry, boolean success) {
+		if (entry.callback == null) {
+			return;
+		}
+
+		try {
+			entry.callback.onWritten(entry, success);
+		} catch (RuntimeException e) {
+			Log.e(TAG, android.util.Log.getStackTraceString(e));
+		}
+	}
+
+	public synchronized int getPendingCount() {
+		return mPending.size();
+	}
+
+	public synchronized int getWrittenCount() {
+		return mWritten;
+	}
+}
@@ -0,0 +1,35 @@
+//
+//    ContactSource.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.nloko.android.syncmypix.namematcher;
+
+import java.util.List;
+
+import com.nloko.android.syncmypix.PhoneContact;
+
+// Supplies the phone contacts a NameMatcher matches against, so the
+// matcher itself doesn't depend on where they are stored.
+public interface ContactSource {
+	// Returns the contacts, or null if they can't be read.
+	// When withPhone is set, only contacts with a phone number are returned.
+	List<PhoneContact> getContacts(boolean withPhone);
+}
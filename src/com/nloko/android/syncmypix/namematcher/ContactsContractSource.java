@@ -0,0 +1,102 @@
+//
+//    ContactsContractSource.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.nloko.android.syncmypix.namematcher;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.nloko.android.Log;
+import com.nloko.android.syncmypix.PhoneContact;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+
+// Reads the phone contacts from the contacts provider
+public class ContactsContractSource implements ContactSource {
+	private static final String TAG = "ContactsContractSource";
+	
+	private final WeakReference<Context> mContext;
+	
+	public ContactsContractSource(Context context) {
+		if (context == null) {
+			throw new IllegalArgumentException("context");
+		}
+		
+		mContext = new WeakReference<Context>(context);
+	}
+	
+	public List<PhoneContact> getContacts(boolean withPhone) {
+		Cursor cursor = doQuery(withPhone);
+		if (cursor == null) {
+			return null;
+		}
+		
+		List<PhoneContact> contacts = new ArrayList<PhoneContact>(cursor.getCount());
+		try {
+			while (cursor.moveToNext()) {
+				PhoneContact contact = createFromCursor(cursor);
+				if (contact != null) {
+					contacts.add(contact);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		return contacts;
+	}
+	
+	protected PhoneContact createFromCursor(Cursor cursor) {
+		if (cursor == null || cursor.isClosed()) {
+			return null;
+		}
+		
+		String id = cursor.getString(cursor.getColumnIndex(ContactsContract.Contacts._ID));
+		String name = cursor.getString(cursor.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME));
+		String lookup = cursor.getString(cursor.getColumnIndex(ContactsContract.Contacts.LOOKUP_KEY));
+		Log.d(TAG, "NameMatcher is processing contact " + name + " " + lookup);
+		return new PhoneContact(id, name, lookup);
+	}
+	
+	protected Cursor doQuery(boolean withPhone) {
+		Context context = mContext.get();
+		if (context == null) {
+			return null;
+		}
+		
+		String where = null;
+		if (withPhone) {
+			where = ContactsContract.Contacts.HAS_PHONE_NUMBER +"=1";
+		}
+		
+		Log.d(TAG, "Querying database for contacts..");
+		
+		return context.getContentResolver().query(ContactsContract.Contacts.CONTENT_URI, 
+				new String[] { ContactsContract.Contacts._ID, ContactsContract.Contacts.DISPLAY_NAME, ContactsContract.Contacts.LOOKUP_KEY },
+				where, 
+				null, 
+				null);
+	}
+}
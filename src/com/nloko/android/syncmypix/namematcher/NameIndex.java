@@ -0,0 +1,267 @@
+//
+//    NameIndex.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+package com.nloko.android.syncmypix.namematcher;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Maps names to the indices of the contacts that carry them.
+// The sorted keys are packed into one char array and the contact indices
+// into one int array, so exact lookups and prefix scans don't allocate.
+//
+// To visit every contact whose name starts with "rob":
+//
+//   int end = index.prefixEnd("rob");
+//   for (int slot = index.prefixStart("rob"); slot < end; slot++)
+//       for (int i = index.postingStart(slot); i < index.postingEnd(slot); i++)
+//           contact = index.posting(i);
+//
+// The arrays are held in buffers, so an index written with write() can be
+// used straight from a memory mapped file by read().
+final class NameIndex {
+	private final CharBuffer mChars;
+	// key i is mChars[mKeyOffsets[i]] to mChars[mKeyOffsets[i + 1]]
+	private final IntBuffer mKeyOffsets;
+	// the contacts of key i are mPostings[mPostingOffsets[i]] to mPostings[mPostingOffsets[i + 1]]
+	private final IntBuffer mPostingOffsets;
+	private final IntBuffer mPostings;
+
+	NameIndex(CharBuffer chars, IntBuffer keyOffsets, IntBuffer postingOffsets, IntBuffer postings) {
+		if (keyOffsets.limit() < 1) {
+			throw new IllegalArgumentException("keyOffsets");
+		} else if (keyOffsets.limit() != postingOffsets.limit()) {
+			throw new IllegalArgumentException("postingOffsets");
+		} else if (keyOffsets.get(keyOffsets.limit() - 1) > chars.limit()) {
+			throw new IllegalArgumentException("chars");
+		} else if (postingOffsets.get(postingOffsets.limit() - 1) > postings.limit()) {
+			throw new IllegalArgumentException("postings");
+		}
+
+		mChars = chars;
+		mKeyOffsets = keyOffsets;
+		mPostingOffsets = postingOffsets;
+		mPostings = postings;
+	}
+
+	public int size() {
+		return mKeyOffsets.limit() - 1;
+	}
+
+	public String key(int slot) {
+		return getString(mChars, mKeyOffsets.get(slot), mKeyOffsets.get(slot + 1) - mKeyOffsets.get(slot));
+	}
+
+	// Returns the slot of key, or -1 if it isn't in the index
+	public int find(String key) {
+		if (key == null) {
+			return -1;
+		}
+
+		int slot = lowerBound(key, false);
+		return slot < size() && compare(slot, key, false) == 0 ? slot : -1;
+	}
+
+	// The slots of all keys starting with prefix are prefixStart to prefixEnd
+	public int prefixStart(String prefix) {
+		return lowerBound(prefix, true);
+	}
+
+	public int prefixEnd(String prefix) {
+		return upperBound(prefix, true);
+	}
+
+	public int postingStart(int slot) {
+		return mPostingOffsets.get(slot);
+	}
+
+	public int postingEnd(int slot) {
+		return mPostingOffsets.get(slot + 1);
+	}
+
+	public int postingCount(int slot) {
+		return mPostingOffsets.get(slot + 1) - mPostingOffsets.get(slot);
+	}
+
+	public int posting(int i) {
+		return mPostings.get(i);
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		writeChars(out, mChars);
+		writeInts(out, mKeyOffsets);
+		writeInts(out, mPostingOffsets);
+		writeInts(out, mPostings);
+	}
+
+	// Reads an index written by write(), leaving in after it. The index
+	// shares its content with in.
+	public static NameIndex read(ByteBuffer in) {
+		CharBuffer chars = readChars(in);
+		IntBuffer keyOffsets = readInts(in);
+		IntBuffer postingOffsets = readInts(in);
+		IntBuffer postings = readInts(in);
+		return new NameIndex(chars, keyOffsets, postingOffsets, postings);
+	}
+
+	static String getString(CharBuffer chars, int start, int length) {
+		char[] s = new char[length];
+		for (int i = 0; i < length; i++) {
+			s[i] = chars.get(start + i);
+		}
+		return new String(s);
+	}
+
+	// Buffers are written as their length followed by their content, in
+	// the big endian order that ByteBuffer reads by default.
+	static void writeChars(DataOutputStream out, CharBuffer chars) throws IOException {
+		out.writeInt(chars.limit());
+		for (int i = 0; i < chars.limit(); i++) {
+			out.writeChar(chars.get(i));
+		}
+	}
+
+	static void writeInts(DataOutputStream out, IntBuffer ints) throws IOException {
+		out.writeInt(ints.limit());
+		for (int i = 0; i < ints.limit(); i++) {
+			out.writeInt(ints.get(i));
+		}
+	}
+
+	static CharBuffer readChars(ByteBuffer in) {
+		return slice(in, 2).asCharBuffer();
+	}
+
+	static IntBuffer readInts(ByteBuffer in) {
+		return slice(in, 4).asIntBuffer();
+	}
+
+	private static ByteBuffer slice(ByteBuffer in, int width) {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining() / width) {
+			throw new IllegalArgumentException("length");
+		}
+
+		ByteBuffer content = in.slice();
+		content.limit(length * width);
+		in.position(in.position() + length * width);
+		return content;
+	}
+
+	// Compares the key in slot with s. When prefix is true, keys starting
+	// with s compare as equal to it.
+	private int compare(int slot, String s, boolean prefix) {
+		int start = mKeyOffsets.get(slot);
+		int length = mKeyOffsets.get(slot + 1) - start;
+		int n = Math.min(length, s.length());
+
+		for (int i = 0; i < n; i++) {
+			int diff = mChars.get(start + i) - s.charAt(i);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+
+		if (prefix && length >= s.length()) {
+			return 0;
+		}
+		return length - s.length();
+	}
+
+	// first slot that compares >= s
+	private int lowerBound(String s, boolean prefix) {
+		int low = 0, high = size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compare(mid, s, prefix) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// first slot that compares > s
+	private int upperBound(String s, boolean prefix) {
+		int low = 0, high = size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compare(mid, s, prefix) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public static final class Builder {
+		private final TreeMap<String, ArrayList<Integer>> mKeys = new TreeMap<String, ArrayList<Integer>>();
+		private int mChars = 0;
+		private int mPostings = 0;
+
+		public void add(String key, int contact) {
+			ArrayList<Integer> postings = mKeys.get(key);
+			if (postings == null) {
+				postings = new ArrayList<Integer>(3);
+				mKeys.put(key, postings);
+				mChars += key.length();
+			}
+			postings.add(contact);
+			mPostings++;
+		}
+
+		public NameIndex build() {
+			char[] chars = new char[mChars];
+			int[] keyOffsets = new int[mKeys.size() + 1];
+			int[] postingOffsets = new int[mKeys.size() + 1];
+			int[] postings = new int[mPostings];
+
+			int slot = 0, c = 0, p = 0;
+			for (Map.Entry<String, ArrayList<Integer>> entry : mKeys.entrySet()) {
+				String key = entry.getKey();
+				key.getChars(0, key.length(), chars, c);
+				c += key.length();
+
+				for (Integer contact : entry.getValue()) {
+					postings[p++] = contact;
+				}
+
+				slot++;
+				keyOffsets[slot] = c;
+				postingOffsets[slot] = p;
+			}
+
+			return new NameIndex(CharBuffer.wrap(chars), 
+					IntBuffer.wrap(keyOffsets), 
+					IntBuffer.wrap(postingOffsets), 
+					IntBuffer.wrap(postings));
+		}
+	}
+}
@@ -30,18 +30,26 @@ package com.nloko.android.syncmypix.namematcher;
 // Rank Facebook friends by how much contact there has been, eliminate non-actual friends.
 // Extend nicknames list.
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Locale;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.Map;
 
 import com.nloko.android.Log;
 import com.nloko.android.Utils;
@@ -49,26 +57,75 @@ import com.nloko.android.syncmypix.PhoneContact;
 import com.nloko.android.syncmypix.SyncMyPixPreferences;
 
 import android.content.Context;
-import android.database.Cursor;
-import android.provider.ContactsContract;
 
 import gr.spinellis.greek.GreekTranscribe;
 
 public class NameMatcher {
     protected final String TAG = "NameMatcher";
-    protected final String mBadChars = "ŠŚŞŹŽŻşšśžźżŸĄÀÁÂÃÄÅÇĆÈÉÊËĘÌÍÎÏİÐĞŁŃÑÖÒÓÔÕÖÙÚÛÜÝąàáâãäåçćèéêëęìíîïıðğłñńòóôõöùúûüýÿ";
-   protected final String mGoodChars = "SSSZZZssszzzYAAAAAAACCEEEEEIIIIIDGLNNOOOOOOUUUUYaaaaaaacceeeeeiiiiidglnnooooouuuuyy ";
     
-    private final TreeMap<String, ArrayList<PhoneContact>> mFirstNames = new TreeMap<String, ArrayList<PhoneContact>>();; 
-    private final TreeMap<String, ArrayList<PhoneContact>> mLastNames = new TreeMap<String, ArrayList<PhoneContact>>();
-    private final HashMap<Object, ArrayList<PhoneContact>> mNickNames = new HashMap<Object, ArrayList<PhoneContact>>();;
+    // Folds every character up to U+017F (Latin-1 Supplement and Latin 
+    // Extended-A) to lower case and replaces accented letters with their 
+    // English equivalents. Letters without one are only lower cased.
+    private static final char[] FOLD = new char[0x180];
+    private static final char FOLD_ACCENTS = '\u00C0';
+    static {
+    	String accents = 
+    	"aaaaaaæceeeeiiiidnooooo×ouuuuyþß" +
+    	"aaaaaaæceeeeiiiidnooooo÷ouuuuyþy" +
+    	"aaaaaaccccccccddddeeeeeeeeeegggg" +
+    	"gggghhhhiiiiiiiiiiĳĳjjkkĸlllllll" +
+    	"lllnnnnnnŉŋŋooooooœœrrrrrrssssss" +
+    	"ssttttttuuuuuuuuuuuuwwyyyzzzzzzs";
+    	
+    	for (char c = 0; c < FOLD_ACCENTS; c++) {
+    		FOLD[c] = Character.toLowerCase(c);
+    	}
+    	accents.getChars(0, accents.length(), FOLD, FOLD_ACCENTS);
+    }
+    
+    // Identifies a snapshot written by save(), change FORMAT along with it
+    private static final int MAGIC = 0x534d504e;
+    private static final int FORMAT = 1;
     
-    private final HashMap<String, Object> mDiminutives = new HashMap<String, Object>();
-    protected final WeakReference<Context> mContext;
+    // The indices map names to positions in the contact tables.
+    private StringTable mContactIds;
+    private StringTable mContactNames;
+    private StringTable mContactLookups;
+    // the last normalized name component of each contact and the number
+    // of components, computed once at load
+    private StringTable mLastTokens;
+    private IntBuffer mTokenCounts;
+    private NameIndex mFirstNames; 
+    private NameIndex mLastNames;
+    private NameIndex mNickNames;
+    // maps each known diminutive to the slot of its group in mNickNames
+    private NameIndex mNickNameSlots;
+    // position of each contact in name order, equal names share a rank
+    private IntBuffer mNameRanks;
+    
+    // Each name maps to the first name of its group of diminutives.
+    // Only needed while the indices are built.
+    private final HashMap<String, String> mDiminutives = new HashMap<String, String>();
+    
+    // Candidate contacts of the current match, kept sorted by name rank.
+    // Reused between calls, so a NameMatcher must only be used from one thread.
+    private int[] mCandidates = new int[16];
+    private int mCandidateCount = 0;
+    // Output of normalizeName(), reused for the same reason.
+    private char[] mNameBuffer = new char[64];
+    protected final ContactSource mSource;
     protected final SyncMyPixPreferences prefs;
     
     public NameMatcher(Context context, SyncMyPixPreferences prefs, InputStream diminutivesFile) throws Exception {
-    	mContext = new WeakReference<Context>(context);
+    	this(new ContactsContractSource(context), prefs, diminutivesFile);
+    }
+    
+    public NameMatcher(ContactSource source, SyncMyPixPreferences prefs, InputStream diminutivesFile) throws Exception {
+    	if (source == null) {
+    		throw new IllegalArgumentException("source");
+    	}
+    	
+    	mSource = source;
     	this.prefs = prefs;
     	
         // Build data structures for the first and last names, so we can
@@ -77,128 +134,252 @@ public class NameMatcher {
     	loadPhoneContacts(prefs.getPhoneOnly());
     }
     
-	protected PhoneContact createFromCursor(Cursor cursor) {
-    	if (cursor == null || cursor.isClosed()) {
-    		return null;
+    // Used by load(), which fills in the indices
+    private NameMatcher(ContactSource source, SyncMyPixPreferences prefs) {
+    	mSource = source;
+    	this.prefs = prefs;
+    }
+    
+    // Identifies the snapshot of a matcher built from contacts at version,
+    // as the preferences change the indices too
+    public static String getSnapshotKey(String version, SyncMyPixPreferences prefs) {
+    	return String.format("%d:%s:%b:%b:%b:%b", 
+    			FORMAT,
+    			version,
+    			prefs.getSpanishNames(),
+    			prefs.getRomanizeGreek(),
+    			prefs.getConsiderDiminutives(),
+    			prefs.getPhoneOnly());
+    }
+    
+    // Writes the indices to file, so load() can skip building them.
+    // The file is replaced in one step, so a matcher still reading the
+    // old one is not disturbed.
+    public void save(File file, String key) throws IOException {
+    	File temp = new File(file.getPath() + ".tmp");
+    	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 8 * 1024));
+    	try {
+    		out.writeInt(MAGIC);
+    		NameIndex.writeChars(out, CharBuffer.wrap(key));
+    		mContactIds.write(out);
+    		mContactNames.write(out);
+    		mContactLookups.write(out);
+    		mLastTokens.write(out);
+    		NameIndex.writeInts(out, mTokenCounts);
+    		NameIndex.writeInts(out, mNameRanks);
+    		mFirstNames.write(out);
+    		mLastNames.write(out);
+    		mNickNames.write(out);
+    		mNickNameSlots.write(out);
+    	} finally {
+    		out.close();
     	}
     	
-    	String id = cursor.getString(cursor.getColumnIndex(ContactsContract.Contacts._ID));
-		String name = cursor.getString(cursor.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME));
-		String lookup = cursor.getString(cursor.getColumnIndex(ContactsContract.Contacts.LOOKUP_KEY));
-		Log.d(TAG, "NameMatcher is processing contact " + name + " " + lookup);
-		return new PhoneContact(id, name, lookup);
-	}
-	
-	protected Cursor doQuery(boolean withPhone) {
-		Context context = mContext.get();
-    	if (context == null) {
+    	if (!temp.renameTo(file)) {
+    		temp.delete();
+    		throw new IOException("could not replace " + file);
+    	}
+    }
+    
+    // Maps a snapshot written by save() with the same key, or returns null
+    // if there is none. The indices are read from the mapped file as they
+    // are used, instead of being copied to the heap.
+    public static NameMatcher load(File file, String key, ContactSource source, SyncMyPixPreferences prefs) {
+    	if (source == null) {
+    		throw new IllegalArgumentException("source");
+    	} else if (!file.exists()) {
     		return null;
     	}
     	
-    	String where = null;
-        if (withPhone) {
-        	where = ContactsContract.Contacts.HAS_PHONE_NUMBER +"=1";
-        }
-        
-        Log.d(TAG, "Querying database for contacts..");
-        
-		return context.getContentResolver().query(ContactsContract.Contacts.CONTENT_URI, 
-				new String[] { ContactsContract.Contacts._ID, ContactsContract.Contacts.DISPLAY_NAME, ContactsContract.Contacts.LOOKUP_KEY },
-				where, 
-				null, 
-				null);
-	}
+    	RandomAccessFile in = null;
+    	try {
+    		in = new RandomAccessFile(file, "r");
+    		FileChannel channel = in.getChannel();
+    		// the mapping outlives the channel
+    		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    		
+    		if (buffer.getInt() != MAGIC || !key.equals(NameIndex.readChars(buffer).toString())) {
+    			return null;
+    		}
+    		
+    		NameMatcher matcher = new NameMatcher(source, prefs);
+    		matcher.mContactIds = StringTable.read(buffer);
+    		matcher.mContactNames = StringTable.read(buffer);
+    		matcher.mContactLookups = StringTable.read(buffer);
+    		matcher.mLastTokens = StringTable.read(buffer);
+    		matcher.mTokenCounts = NameIndex.readInts(buffer);
+    		matcher.mNameRanks = NameIndex.readInts(buffer);
+    		matcher.mFirstNames = NameIndex.read(buffer);
+    		matcher.mLastNames = NameIndex.read(buffer);
+    		matcher.mNickNames = NameIndex.read(buffer);
+    		matcher.mNickNameSlots = NameIndex.read(buffer);
+    		
+    		int contacts = matcher.mContactIds.size();
+    		if (matcher.mContactNames.size() != contacts 
+    				|| matcher.mContactLookups.size() != contacts
+    				|| matcher.mLastTokens.size() != contacts
+    				|| matcher.mTokenCounts.limit() != contacts
+    				|| matcher.mNameRanks.limit() != contacts) {
+    			return null;
+    		}
+    		
+    		return matcher;
+    	} catch (Exception e) {
+    		// unreadable, truncated or damaged, it will be written again
+    		Log.e("NameMatcher", android.util.Log.getStackTraceString(e));
+    	} finally {
+    		try {
+    			if (in != null) {
+    				in.close();
+    			}
+    		} catch (IOException e) {}
+    	}
+    	
+    	return null;
+    }
     
     protected void loadPhoneContacts(boolean withPhone) {
 
-    	Cursor cursor = doQuery(withPhone);
-    	if (cursor == null) {
-    		return;
+    	NameIndex.Builder firstNames = new NameIndex.Builder();
+    	NameIndex.Builder lastNames = new NameIndex.Builder();
+    	NameIndex.Builder nickNames = new NameIndex.Builder();
+    	StringTable.Builder lastTokens = new StringTable.Builder();
+    	ArrayList<PhoneContact> loaded = new ArrayList<PhoneContact>();
+    	ArrayList<Integer> tokenCounts = new ArrayList<Integer>();
+    	
+    	List<PhoneContact> contacts = mSource.getContacts(withPhone);
+    	if (contacts != null) {
+	        for (PhoneContact contact : contacts) {
+	    		if (contact == null) {
+	    			continue;
+	    		}
+	//            if (users[i] == null)
+	//                throw new Exception("Internal error: user " + i + " was null in NameMatcher c'tor");
+	            
+	    		String[] components = normalizeName(contact.name);
+	    		if (components == null) {
+	    			continue;
+	    		}
+	            
+	    		int index = loaded.size();
+	    		loaded.add(contact);
+	    		
+	            String fname = components[0];
+	            String lname = components[components.length - 1];
+	            lastTokens.add(lname);
+	            tokenCounts.add(components.length);
+	            
+	            firstNames.add(fname, index);
+	            if (Log.debug) Log.d(TAG, "added " + fname + " to mFirstNames = " + contact.name);
+	            
+	            lastNames.add(lname, index);
+	            
+	            // If spanish names enabled, guess that "middle" name is last name too
+	            // (until we do proper fetching of first/last name, which'll be a mess anyway)
+	            if (prefs.getSpanishNames() && components.length >= 3) {
+	            	lastNames.add(components[components.length - 2], index);
+	            }
+	            
+	            // See below for a description of sentinels and diminutives.
+	            String sentinel = mDiminutives.get(fname);
+	            if (sentinel != null) {
+	                if (Log.debug) Log.d(TAG, "linking " + sentinel + " with " + contact.name);
+	                nickNames.add(sentinel, index);
+	            }
+	        }
+    	}
+       	
+       	StringTable.Builder ids = new StringTable.Builder();
+       	StringTable.Builder names = new StringTable.Builder();
+       	StringTable.Builder lookups = new StringTable.Builder();
+       	int[] counts = new int[loaded.size()];
+       	for (int i = 0; i < counts.length; i++) {
+       		PhoneContact contact = loaded.get(i);
+       		ids.add(contact.id);
+       		names.add(contact.name);
+       		lookups.add(contact.lookup);
+       		counts[i] = tokenCounts.get(i);
+       	}
+       	
+       	mContactIds = ids.build();
+       	mContactNames = names.build();
+       	mContactLookups = lookups.build();
+       	mLastTokens = lastTokens.build();
+       	mTokenCounts = IntBuffer.wrap(counts);
+       	mFirstNames = firstNames.build();
+       	mLastNames = lastNames.build();
+       	mNickNames = nickNames.build();
+       	mNameRanks = IntBuffer.wrap(rankContacts(loaded));
+       	
+       	// names whose group no contact belongs to can never match a nickname
+       	NameIndex.Builder nickNameSlots = new NameIndex.Builder();
+       	for (Map.Entry<String, String> entry : mDiminutives.entrySet()) {
+       		int slot = mNickNames.find(entry.getValue());
+       		if (slot >= 0) {
+       			nickNameSlots.add(entry.getKey(), slot);
+       		}
+       	}
+       	mNickNameSlots = nickNameSlots.build();
+       	mDiminutives.clear();
+    }
+    
+    // Candidates are tried in name order, see match()
+    private static int[] rankContacts(final List<PhoneContact> contacts) {
+    	Integer[] order = new Integer[contacts.size()];
+    	for (int i = 0; i < order.length; i++) {
+    		order[i] = i;
     	}
     	
-        while(cursor.moveToNext()) {
-    		PhoneContact contact = createFromCursor(cursor);
-    		if (contact == null) {
-    			continue;
-    		}
-//            if (users[i] == null)
-//                throw new Exception("Internal error: user " + i + " was null in NameMatcher c'tor");
-            
-    		String name = normalizeName(contact.name);
-    		if (name == null) {
-    			continue;
+    	Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return contacts.get(a).compareTo(contacts.get(b));
+			}
+    	});
+    	
+    	int[] ranks = new int[order.length];
+    	int rank = 0;
+    	for (int i = 0; i < order.length; i++) {
+    		if (i > 0 && contacts.get(order[i]).compareTo(contacts.get(order[i - 1])) != 0) {
+    			rank++;
     		}
-            
-    		String[] components = name.split(" ");
-            String fname = components[0];
-            String lname = components[components.length - 1];
-            
-            if (mFirstNames.get(fname) == null)
-                mFirstNames.put(fname, new ArrayList<PhoneContact>(3));
-            mFirstNames.get(fname).add(contact);
-            if (Log.debug) Log.d(TAG, "added " + fname + " to mFirstNames = " + contact.name);
-            
-            if (mLastNames.get(lname) == null)
-                mLastNames.put(lname, new ArrayList<PhoneContact>(3));
-            mLastNames.get(lname).add(contact);
-            
-            // If spanish names enabled, guess that "middle" name is last name too
-            // (until we do proper fetching of first/last name, which'll be a mess anyway)
-            if (prefs.getSpanishNames() && components.length >= 3) {
-            	String lname2 = components[components.length - 2];
-            	if (mLastNames.get(lname2) == null)
-                    mLastNames.put(lname2, new ArrayList<PhoneContact>(3));
-                mLastNames.get(lname2).add(contact);
-            }
-            
-            // See below for a description of sentinels and diminutives.
-            Object sentinel = mDiminutives.get(fname);
-            if (sentinel != null) {
-                if (mNickNames.get(sentinel) == null) {
-                    mNickNames.put(sentinel, new ArrayList<PhoneContact>(3));
-                }
-                if (Log.debug) Log.d(TAG, "linking " + sentinel + " with " + contact.name);
-                mNickNames.get(sentinel).add(contact);
-            }
-        }
-        
-       	cursor.close();
+    		ranks[order[i]] = rank;
+    	}
+    	return ranks;
+    }
+    
+    private PhoneContact getContact(int index) {
+    	return new PhoneContact(mContactIds.get(index), mContactNames.get(index), mContactLookups.get(index));
     }
     
     public void destroy() {
-    	if (mFirstNames != null) {
-    		mFirstNames.clear();
-    	}
-    	if (mLastNames != null) {
-    		mLastNames.clear();
-    	}
-    	if (mNickNames != null) {
-    		mNickNames.clear();
-    	}
-    	if (mDiminutives != null) {
-    		mDiminutives.clear();
-    	}
+    	mContactIds = null;
+    	mContactNames = null;
+    	mContactLookups = null;
+    	mLastTokens = null;
+    	mTokenCounts = null;
+    	mFirstNames = null;
+    	mLastNames = null;
+    	mNickNames = null;
+    	mNickNameSlots = null;
+    	mNameRanks = null;
+    	mDiminutives.clear();
     }
     
     public void dump() {
-    	for(String name : mFirstNames.keySet()) {
-    		if (Log.debug) Log.d(TAG, String.format("First name:%s", name));
-    		for(PhoneContact c : mFirstNames.get(name)) {
-    			if (Log.debug) Log.d(TAG, String.format("Phone Contact:%s", c.name));
-    		}
-    	}
-    	
-    	for(String name : mLastNames.keySet()) {
-    		if (Log.debug) Log.d(TAG, String.format("Last name:%s", name));
-    		for(PhoneContact c : mLastNames.get(name)) {
-    			if (Log.debug) Log.d(TAG, String.format("Phone Contact:%s", c.name));
-    		}
+    	dump("First name", mFirstNames);
+    	dump("Last name", mLastNames);
+    	dump("Nick name", mNickNames);
+    }
+    
+    private void dump(String label, NameIndex index) {
+    	if (!Log.debug || index == null) {
+    		return;
     	}
     	
-    	for(Object o : mNickNames.keySet()) {
-    		if (Log.debug) Log.d(TAG, String.format("Nick name:%s", o));
-    		for(PhoneContact c : mNickNames.get(o)) {
-    			if (Log.debug) Log.d(TAG, String.format("Phone Contact:%s", c.name));
+    	for (int slot = 0; slot < index.size(); slot++) {
+    		Log.d(TAG, String.format("%s:%s", label, index.key(slot)));
+    		for (int i = index.postingStart(slot); i < index.postingEnd(slot); i++) {
+    			Log.d(TAG, String.format("Phone Contact:%s", mContactNames.get(index.posting(i))));
     		}
     	}
     }
@@ -212,14 +393,15 @@ public class NameMatcher {
         // This scheme fails for some names. For instance, "alfie" isn't really
         // the same as "fred" yet they are both equivalents to "alfred".
         //
-        // Names are mapped via a HashMap to instances of Object. Two names 
-        // that map to the same sentinel instance are the same. The value
-        // is thus meaningless and used simply to provide an equality test.
+        // Names are mapped via a HashMap to a sentinel, the first name seen
+        // of their group. Two names that map to the same sentinel are the 
+        // same. The value is only used to provide an equality test and to
+        // key the nickname index.
         //
         // Each line is processed one at a time. Each name in that line is 
         // looked up in the map. If any name on the line is mapped, all the 
-        // names on that line are mapped to the same value. Otherwise, a new
-        // Object is allocated, and all the names are mapped to that new value.
+        // names on that line are mapped to the same value. Otherwise, the
+        // first name on the line becomes the sentinel of a new group.
     	BufferedReader reader = null;
     	
         try {
@@ -227,12 +409,12 @@ public class NameMatcher {
             reader = new BufferedReader(new InputStreamReader(diminutivesFile, "UTF-8"), 8 * 1024);   
             String line;
             while ((line = reader.readLine()) != null) {
-                Object sentinel = null;
+                String sentinel = null;
                 String[] names = line.split(",");
                 
                 // Are any of these names already known?
                 for (int i = 0; i < names.length; i++) {
-                    Object o = mDiminutives.get(names[i]);
+                    String o = mDiminutives.get(names[i]);
                     if (o != null) {
                         sentinel = o;
                         break;
@@ -243,10 +425,12 @@ public class NameMatcher {
                     // So fall through.
                 } else {
                     // Otherwise, we never saw any of these names before.
-                    sentinel = new Object();
+                    // None of them belong to a group yet, so the first one 
+                    // can't be the sentinel of another group.
+                    sentinel = names[0];
                 }
                 for (int i = 0; i < names.length; i++) {
-                    Object existingSentinel = mDiminutives.get(names[i]); 
+                    String existingSentinel = mDiminutives.get(names[i]); 
                     if (existingSentinel != null && existingSentinel != sentinel) {
                         // This happens if a name is shared between more than two
                         // lines. This is rare so just merge them down to two by 
@@ -274,10 +458,12 @@ public class NameMatcher {
         }
     }
 
-    private String normalizeName(String name) {
+    // Returns the words of the name, or null if there is no name.
+    // Package visible for the benchmarks.
+    String[] normalizeName(String name) {
         // Lower case the name, and replace non-English characters with their
         // English equivalents, as some people won't bother to type accents in
-        // their friends names. Also strip stuff in brackets and delete commas.
+        // their friends names. Also strip stuff in brackets.
 
     	// First transcribe any Greek characters to Latin according to ISO 843:1997
     	if (prefs.getRomanizeGreek()) {
@@ -288,34 +474,58 @@ public class NameMatcher {
     		return null;
     	}
     	
-        StringBuffer newName = new StringBuffer(name.toLowerCase(Locale.getDefault()).trim());
-        
+    	int start = 0, end = name.length();
+    	while (start < end && name.charAt(start) <= ' ') start++;
+    	while (end > start && name.charAt(end - 1) <= ' ') end--;
+    	
+    	if (mNameBuffer.length < end - start) {
+    		mNameBuffer = new char[end - start];
+    	}
+    	char[] newName = mNameBuffer;
+    	
+        int length = 0;
+        int words = 0;
         int bracket = 0;
-        int newNameLength = newName.length();
-        for (int i = 0; i < newNameLength; i++) {
-            char c = newName.charAt(i);
-            
-            // Filter out accented characters.
-            int badIndex = mBadChars.indexOf(c); 
-            if (badIndex > -1)
-                newName.setCharAt(i, mGoodChars.charAt(badIndex));
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
             
             // Delete text in brackets, the - character if it's the last one,
-            // commas and duplicate whitespace.
+            // and duplicate whitespace.
             if (c == '(') bracket++;
-            if (bracket > 0 || 
-                    (i == newNameLength - 1 && c == '-') ||
-                    (c == ' ' && i == 0) ||
-                    (c == ' ' && i > 0 && newName.charAt(i - 1) == ' ')) {
-                if (c == ')') bracket--;
-                newName.deleteCharAt(i);
-                newNameLength--;
-                i--; // Step backwards, so the continue statement puts us back
-                     // to the right place.
-                continue;
+            if (bracket > 0) {
+            	if (c == ')') bracket--;
+            	continue;
             }
+            if (c == '-' && i == end - 1) {
+            	continue;
+            }
+            if (c == ' ') {
+            	if (length == 0 || newName[length - 1] == ' ') {
+            		continue;
+            	}
+            } else if (length == 0 || newName[length - 1] == ' ') {
+            	words++;
+            }
+            
+            // Filter out accented characters.
+            newName[length++] = c < FOLD.length ? FOLD[c] : Character.toLowerCase(c);
         }
-        return newName.toString();
+        
+        if (words == 0) {
+        	return new String[] { "" };
+        }
+        
+        String[] components = new String[words];
+        int word = 0, wordStart = 0;
+        for (int i = 0; i <= length; i++) {
+        	if (i == length || newName[i] == ' ') {
+        		if (i > wordStart) {
+        			components[word++] = new String(newName, wordStart, i - wordStart);
+        		}
+        		wordStart = i + 1;
+        	}
+        }
+        return components;
     }
     
     private String[] reverse(String[] components) {
@@ -334,23 +544,23 @@ public class NameMatcher {
     		return null;
     	}
     	
-    	String[] components = normalizeName(name).split(" ");
+    	String[] components = normalizeName(name);
     	
         if (reverse) {
             components = reverse(components);
         }
         
-        ArrayList<PhoneContact> possibilities = mFirstNames.get(components[0]);
-        if (possibilities != null) {
+        int slot = mFirstNames.find(components[0]);
+        if (slot >= 0) {
             if (Log.debug) Log.d(TAG, "prefix match from " + components[0] + " to ");
-            for (PhoneContact u : possibilities) {
-                if (Log.debug) Log.d(TAG, "   " + u.name);
+            for (int i = mFirstNames.postingStart(slot); i < mFirstNames.postingEnd(slot); i++) {
+            	int contact = mFirstNames.posting(i);
+                if (Log.debug) Log.d(TAG, "   " + mContactNames.get(contact));
                 
-                String[] matchParts = normalizeName(u.name).split(" ");
-                String lname = matchParts[matchParts.length - 1];
+                String lname = mLastTokens.get(contact);
                 
                 if (lname != null && lname.equals(components[components.length - 1])) {
-                	return u;
+                	return getContact(contact);
                 }
             }
         }
@@ -374,7 +584,7 @@ public class NameMatcher {
     	}
     	
         // Select exact first/last name matches
-        String[] components = normalizeName(name).split(" ");
+        String[] components = normalizeName(name);
         
         if (reverse) {
             components = reverse(components);
@@ -383,61 +593,56 @@ public class NameMatcher {
         if (Log.debug) Log.d(TAG, "Trying to match: " + Utils.join(components, ' '));
         
         // Compile all the possibilities based on first name match only.
-        //TreeSet<PhoneContact> possibilities = getRecycledTreeSet();
-        //possibilities.addAll(prefixMatch(components[0], mFirstNames));
-/*        ArrayList<PhoneContact> fnameMatches = mFirstNames.get(components[0]);
-        if (fnameMatches == null) {
-        	fnameMatches = new ArrayList<PhoneContact>(3);
-        }*/
-        
-        //possibilities.addAll(fnameMatches);
-        //TreeSet<PhoneContact> possibilities = new TreeSet<PhoneContact>(fnameMatches);
-        TreeSet<PhoneContact> possibilities = new TreeSet<PhoneContact>(prefixMatch(components[0], mFirstNames));
-        if (possibilities.size() > 0) {
+        mCandidateCount = 0;
+        prefixMatch(components[0], mFirstNames);
+        if (mCandidateCount > 0) {
             if (Log.debug) Log.d(TAG, "prefix match from " + components[0] + " to ");
-            for (PhoneContact u : possibilities) 
-                if (Log.debug) Log.d(TAG, "   " + u.name);
+            for (int i = 0; i < mCandidateCount; i++) 
+                if (Log.debug) Log.d(TAG, "   " + mContactNames.get(mCandidates[i]));
         }
         
-        ArrayList<PhoneContact> matches = nicknameMatch(components[0]);
-        if (matches != null) { 
-            if (matches.size() > 1) {
-                if (Log.debug) Log.d(TAG, "multiple nickname matches:");
-                for (PhoneContact temp : matches) if (Log.debug) Log.d(TAG, "   " + temp.name);
-            } else if (matches.size() == 1) {
-                if (Log.debug) Log.d(TAG, "nickname matched " + components[0] + " to " + matches.get(0).name);
-            } 
-            possibilities.addAll(matches);
+        int matches = nicknameMatch(components[0]);
+        if (matches >= 0) { 
+            if (Log.debug) {
+            	int count = mNickNames.postingCount(matches);
+	            if (count > 1) {
+	                Log.d(TAG, "multiple nickname matches:");
+	                for (int i = mNickNames.postingStart(matches); i < mNickNames.postingEnd(matches); i++) 
+	                	Log.d(TAG, "   " + mContactNames.get(mNickNames.posting(i)));
+	            } else if (count == 1) {
+	                Log.d(TAG, "nickname matched " + components[0] + " to " + mContactNames.get(mNickNames.posting(mNickNames.postingStart(matches))));
+	            } 
+            }
+            addCandidates(mNickNames, matches);
         } else 
             if (Log.debug) Log.d(TAG, "no nickname matches");
         
-        if (possibilities.size() > 0) {
+        if (mCandidateCount > 0) {
             // We have at least one match on first name.
             if (components.length > 1) {
                 // Pick the first which does not violate the last name.
-                for (PhoneContact possibility : possibilities) {
-                    String[] matchParts = normalizeName(possibility.name).split(" ");
-                    String lname = matchParts[matchParts.length - 1];
+                for (int i = 0; i < mCandidateCount; i++) {
+                    String lname = mLastTokens.get(mCandidates[i]);
                     if (lname.startsWith(components[components.length - 1]) ||
                     		components[components.length - 1].startsWith(lname)) {
-                        if (Log.debug) Log.d(TAG, "matched " + name + " to " + possibility.name);
-                        return possibility;
+                        if (Log.debug) Log.d(TAG, "matched " + name + " to " + mContactNames.get(mCandidates[i]));
+                        return getContact(mCandidates[i]);
                     }
                     else if (prefs.getSpanishNames() && components.length >= 3 && (
                     		lname.startsWith(components[components.length - 2]) ||
                     		components[components.length - 2].startsWith(lname)
                     		)) {
-                    	return possibility;
+                    	return getContact(mCandidates[i]);
                     }
                 }
                 if (Log.debug) Log.d(TAG, "all inexact first name matches violated last name constraints");
             } if (firstNameOnlyMatches) {
-                if (possibilities.size() == 1) {
+                if (mCandidateCount == 1) {
                     // We only have a first name in the contacts list, but 
                     // only one possibility from Facebook. So that's our answer.
-                    PhoneContact answer = possibilities.iterator().next(); 
+                    PhoneContact answer = getContact(mCandidates[0]); 
                     // only return if no last name
-                    if (getWordCount(answer.name) == 1) {
+                    if (mTokenCounts.get(mCandidates[0]) == 1) {
                     	if (Log.debug) Log.d(TAG, "only one possibility, matched " + name + " to " + answer.name);
                     	return answer;
                     }
@@ -447,13 +652,15 @@ public class NameMatcher {
                     // is also a "Michael Douglas" in the friends list, because
                     // "Mike" will be expanded to match both people, even though
                     // it's probably the first friend.
-                    ArrayList<PhoneContact> exactMatches;
-                    exactMatches = mFirstNames.get(components[0]);
-                    if (exactMatches != null 
-                    		&& exactMatches.size() == 1 
-                    		&& getWordCount(exactMatches.get(0).name) == 1) {
-                        if (Log.debug) Log.d(TAG, "exact first name match " + components[0] + " to " + exactMatches.get(0).name);
-                        return exactMatches.get(0);
+                    int exactMatches = mFirstNames.find(components[0]);
+                    if (exactMatches >= 0 
+                    		&& mFirstNames.postingCount(exactMatches) == 1) {
+                    	int contact = mFirstNames.posting(mFirstNames.postingStart(exactMatches));
+                    	PhoneContact answer = getContact(contact);
+                    	if (mTokenCounts.get(contact) == 1) {
+	                        if (Log.debug) Log.d(TAG, "exact first name match " + components[0] + " to " + answer.name);
+	                        return answer;
+                    	}
                     }
                     if (Log.debug) Log.d(TAG, "first name matched multiple people and there is no disambiguating last name");
                 }
@@ -462,10 +669,11 @@ public class NameMatcher {
         
         // Accept only a last name, eg "Dunlop" -> "Paul Dunlop" when unambiguous.
         if (components.length == 1) {
-            ArrayList<PhoneContact> users = mLastNames.get(components[0]);
-            if (users != null && users.size() == 1) {
-                if (Log.debug) Log.d(TAG, "exact last name match: " + users.get(0).name);
-                return users.get(0);
+            int users = mLastNames.find(components[0]);
+            if (users >= 0 && mLastNames.postingCount(users) == 1) {
+            	PhoneContact answer = getContact(mLastNames.posting(mLastNames.postingStart(users)));
+                if (Log.debug) Log.d(TAG, "exact last name match: " + answer.name);
+                return answer;
             }
         } else if (!reverse) {
             // Didn't find any good matches, but some people store contacts Last, First.
@@ -477,154 +685,62 @@ public class NameMatcher {
         return null;
     }
     
-    private ArrayList<PhoneContact> nicknameMatch(String nickname) {
+    // Returns the slot of the nickname's group in mNickNames, or -1
+    private int nicknameMatch(String nickname) {
     	if (nickname == null) {
-    		return null;
+    		return -1;
     	}
     	
-        Object sentinel = mDiminutives.get(nickname);
-        if (sentinel == null) 
-            return null;
+        int slot = mNickNameSlots.find(nickname);
+        if (slot < 0) 
+            return -1;
         
-        return mNickNames.get(sentinel);
+        return mNickNameSlots.posting(mNickNameSlots.postingStart(slot));
     }
     
     // Tries to use prefix matching to find a match, eg "rob" -> "robert".
-    private ArrayList<PhoneContact> prefixMatch(String part, TreeMap<String, ArrayList<PhoneContact>> map) {
-        ArrayList<PhoneContact> results = new ArrayList<PhoneContact>(3);
-
-        if (map == null || part == null || part.length() == 0) {
-        	return results;
+    // Matches are added to the candidates.
+    private void prefixMatch(String part, NameIndex index) {
+        if (index == null || part == null || part.length() == 0) {
+        	return;
         }
         
-        String startKey = part;
-        StringBuffer endKey = new StringBuffer(startKey);
-        endKey.setCharAt(startKey.length() - 1, (char) (startKey.charAt(startKey.length() - 1) + 1));
-        // eg, select from "mike" to "mikf"
-        SortedMap<String, ArrayList<PhoneContact>> selection = map.subMap(startKey, endKey.toString());
-        for (String s : selection.keySet()) {
-            if (s.startsWith(part)) {
-                results.addAll(selection.get(s));
-            } else {
-                if (Log.debug) Log.d(TAG, "unexpected: " + s + ", " + part);
-            }
+        int end = index.prefixEnd(part);
+        for (int slot = index.prefixStart(part); slot < end; slot++) {
+        	addCandidates(index, slot);
         }
-        return results;
     }
     
-    private int getWordCount(String phrase) {
-    	if (phrase == null) {
-    		return 0;
+    private void addCandidates(NameIndex index, int slot) {
+    	for (int i = index.postingStart(slot); i < index.postingEnd(slot); i++) {
+    		addCandidate(index.posting(i));
     	}
-    	
-    	return phrase.split(" ").length;
     }
     
-/*    // TODO: Convert this to a JUnit test when figured out how.
-    static private void test(NameMatcher m, String name, PhoneContact user) {
-        PhoneContact res = m.match(name, true); 
-        if (res != user) 
-            System.out.println(" **** Failed NameMatcher test: " + name + " should have been " + (user == null ? "null" : user.name) + " but was actually " + (res == null ? "null" : res.name));
+    // Inserts the contact in name order. Like the TreeSet this replaces, a
+    // contact whose name is already a candidate is dropped.
+    private void addCandidate(int contact) {
+    	int rank = mNameRanks.get(contact);
+    	int low = 0, high = mCandidateCount;
+    	while (low < high) {
+    		int mid = (low + high) >>> 1;
+    		int midRank = mNameRanks.get(mCandidates[mid]);
+    		if (midRank < rank) {
+    			low = mid + 1;
+    		} else if (midRank > rank) {
+    			high = mid;
+    		} else {
+    			return;
+    		}
+    	}
+    	
+    	if (mCandidateCount == mCandidates.length) {
+    		int[] candidates = new int[mCandidates.length * 2];
+    		System.arraycopy(mCandidates, 0, candidates, 0, mCandidateCount);
+    		mCandidates = candidates;
+    	}
+    	System.arraycopy(mCandidates, low, mCandidates, low + 1, mCandidateCount - low);
+    	mCandidates[low] = contact;
+    	mCandidateCount++;
     }
-    static public void unitTest(InputStream diminutivesFile) {
-        PhoneContact theresia = new PhoneContact("1", "Theresia Paul", "", "");
-        PhoneContact alejandro = new PhoneContact("2", "Alejandro Cuervo", "", "");
-        PhoneContact tala = new PhoneContact("3", "Tala von Daniken", "", "");
-        PhoneContact paul = new PhoneContact("4", "Paul Dunlop", "", "");
-        PhoneContact andre = new PhoneContact("5", "Andrea Beltrán", "", "");
-        PhoneContact joanna1 = new PhoneContact("6", "Joanna Frisch", "", "");
-        PhoneContact joanna2 = new PhoneContact("7", "Joanna Something", "", "");
-        PhoneContact stribb = new PhoneContact("8", "Andrew Stribblehill", "", "");
-        PhoneContact rob = new PhoneContact("9", "Robert Cook", "", "");
-        PhoneContact prince = new PhoneContact("10", "Prince", "", "");
-        PhoneContact rob2 = new PhoneContact("11", "Robert Second", "", "");
-        PhoneContact rob3 = new PhoneContact("12", "John Robert", "", "");
-        PhoneContact alex1 = new PhoneContact("13", "Alexandra One", "", "");
-        PhoneContact ellie = new PhoneContact("14", "Ellie Two", "", "");
-        PhoneContact[] users = { theresia, alejandro, tala, paul, andre, 
-                                 joanna1, joanna2, stribb, rob, prince,
-                                 rob2, rob3, alex1, ellie };
-        
-        NameMatcher matcher;
-        try {
-            matcher = new NameMatcher(users, diminutivesFile);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
-        
-        // Cases that are known to fail:
-        // 
-        // test(matcher, "von Daniken", tala);   -- von looks like a first name constraint
-        // test(matcher, "Rob", rob);   -- first name match is ambiguous so we default to last name match, which is unlikely to be correct
-        
-        // The basics ...
-        test(matcher, "Paul Dunlop", paul);
-        
-        // Not whitespace sensitive
-        test(matcher, "  Paul    Dunlop  ", paul);
-
-        // Test hack for my address book
-        test(matcher, "Alejandro -", alejandro);
-        
-        // Bracketed text
-        test(matcher, "Paul Dunlop (some dude)", paul);
-        test(matcher, "(some dude) Paul Dunlop", paul);
-        test(matcher, "    (some dude) Paul Dunlop  ", paul);
-        test(matcher, "(whatever) Paul Dunlop (some dude)", paul);
-
-        // Case insensitive match
-        test(matcher, "THERESIA PAUL", theresia);
-        
-        // Multiple hits == null (don't guess, we don't have enough info)
-        // TODO: We could try and take into account "popularity" here, ie, how
-        // much the user communicates with each friend, or how many mutual friends
-        // they have to resolve ambiguities like this.
-        test(matcher, "Joanna", null);
-        
-        // Unambiguous first name.
-        test(matcher, "Andrew", stribb);
-        // Unambiguous first name with first-name-only matches disabled.
-        if (matcher.match("Andrew", false) == stribb)
-            System.out.println("*** first name only match occurred even when not requested");
-        
-        // No match.
-        test(matcher, "Robert Nosuchname", null);
-        test(matcher, "Nosuchname Cook", null);
-        
-        test(matcher, "Joanna F", joanna1);
-        test(matcher, "Joanna S", joanna2);
-        test(matcher, "Bob C", rob);
-        
-        // Middle names are ignored
-        test(matcher, "Tala Daniken", tala);
-        // Exact first name match takes precedence over last name match
-        test(matcher, "Paul", paul);
-        // No match despite shared first name.
-        test(matcher, "Paul Smith", null);
-        
-        // Exact last name 
-        test(matcher, "Dunlop", paul);
-        
-        // Insensitive to accents
-        test(matcher, "Andrea Beltran", andre);
-        // Truncated first name with accent insensitivity
-        test(matcher, "Andre Beltran", andre);
-        
-        // Lastname Firstname
-        test(matcher, "Dunlop Paul", paul);
-        test(matcher, "Dunlop P", paul);
-        test(matcher, "Dunlop, P", paul);
-        test(matcher, "Dunlop, Paul", paul);
-        test(matcher, "Dunlop,Paul", paul);  // Apparently WinMo does this.
-
-        test(matcher, "P Dunlop", paul);
-        
-        // Diminutives, short form in contacts
-        test(matcher, "Lex", alex1);
-        test(matcher, "Sandra", alex1);
-        test(matcher, "Andy S", stribb);
-        // Diminutives, short form in Facebook
-        test(matcher, "Eleanor Two", ellie);
-    }*/
 }
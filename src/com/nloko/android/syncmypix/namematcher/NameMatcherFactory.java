@@ -21,8 +21,11 @@
 //
 package com.nloko.android.syncmypix.namematcher;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 
+import com.nloko.android.Log;
 import com.nloko.android.syncmypix.SyncMyPixPreferences;
 
 import android.content.Context;
@@ -32,7 +35,48 @@ import android.content.Context;
 // As I've merged both and standardized params everywhere,
 // this factory is at present time useless.
 public class NameMatcherFactory {
+	private static final String TAG = "NameMatcherFactory";
+	
 	public static NameMatcher create(Context context, SyncMyPixPreferences prefs, InputStream diminutivesFile) throws Exception {
 		return new NameMatcher(context, prefs, diminutivesFile);
 	}
+	
+	public static NameMatcher create(ContactSource source, SyncMyPixPreferences prefs, InputStream diminutivesFile) throws Exception {
+		return new NameMatcher(source, prefs, diminutivesFile);
+	}
+	
+	// Reuses the matcher saved in snapshot when it was built from the same 
+	// version of the contacts with the same preferences, and otherwise
+	// builds one and saves it there. version must change whenever the
+	// contacts or the diminutives do.
+	public static NameMatcher create(ContactSource source, String version, SyncMyPixPreferences prefs, 
+			InputStream diminutivesFile, File snapshot) throws Exception {
+		if (version == null) {
+			throw new IllegalArgumentException("version");
+		} else if (snapshot == null) {
+			throw new IllegalArgumentException("snapshot");
+		}
+		
+		try {
+			String key = NameMatcher.getSnapshotKey(version, prefs);
+			NameMatcher matcher = NameMatcher.load(snapshot, key, source, prefs);
+			if (matcher != null) {
+				Log.d(TAG, "loaded name matcher snapshot " + key);
+				return matcher;
+			}
+			
+			matcher = new NameMatcher(source, prefs, diminutivesFile);
+			try {
+				matcher.save(snapshot, key);
+			} catch (IOException e) {
+				// only costs a rebuild next time
+				Log.e(TAG, android.util.Log.getStackTraceString(e));
+			}
+			return matcher;
+		} finally {
+			try {
+				diminutivesFile.close();
+			} catch (IOException e) {}
+		}
+	}
 }
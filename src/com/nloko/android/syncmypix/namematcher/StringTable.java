@@ -0,0 +1,106 @@
+//
+//    StringTable.java is part of SyncMyPix
+//
+//    Authors:
+//        Neil Loknath <neil.loknath@gmail.com>
+//
+//    Copyright (c) 2009 Neil Loknath
+//
+//    SyncMyPix is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    SyncMyPix is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with SyncMyPix.  If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package com.nloko.android.syncmypix.namematcher;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+// A list of strings, any of which may be null, packed into one char 
+// buffer like the keys of a NameIndex.
+final class StringTable {
+	private final CharBuffer mChars;
+	// string i is mChars[mOffsets[i]] to mChars[mOffsets[i + 1]], or null
+	// when mOffsets[i + 1] is negative
+	private final IntBuffer mOffsets;
+	
+	StringTable(CharBuffer chars, IntBuffer offsets) {
+		if (offsets.limit() < 1) {
+			throw new IllegalArgumentException("offsets");
+		} else if (end(offsets, offsets.limit() - 1) > chars.limit()) {
+			throw new IllegalArgumentException("chars");
+		}
+		
+		mChars = chars;
+		mOffsets = offsets;
+	}
+	
+	public int size() {
+		return mOffsets.limit() - 1;
+	}
+	
+	public String get(int i) {
+		int end = mOffsets.get(i + 1);
+		if (end < 0) {
+			return null;
+		}
+		
+		int start = end(mOffsets, i);
+		return NameIndex.getString(mChars, start, end - start);
+	}
+	
+	public void write(DataOutputStream out) throws IOException {
+		NameIndex.writeChars(out, mChars);
+		NameIndex.writeInts(out, mOffsets);
+	}
+	
+	public static StringTable read(ByteBuffer in) {
+		CharBuffer chars = NameIndex.readChars(in);
+		IntBuffer offsets = NameIndex.readInts(in);
+		return new StringTable(chars, offsets);
+	}
+	
+	private static int end(IntBuffer offsets, int i) {
+		int end = offsets.get(i);
+		return end < 0 ? -1 - end : end;
+	}
+	
+	public static final class Builder {
+		private final StringBuilder mChars = new StringBuilder();
+		private int[] mOffsets = new int[17];
+		private int mSize = 0;
+		
+		public void add(String s) {
+			if (mSize + 2 > mOffsets.length) {
+				int[] offsets = new int[mOffsets.length * 2];
+				System.arraycopy(mOffsets, 0, offsets, 0, mSize + 1);
+				mOffsets = offsets;
+			}
+			
+			if (s != null) {
+				mChars.append(s);
+			}
+			mSize++;
+			mOffsets[mSize] = s != null ? mChars.length() : -1 - mChars.length();
+		}
+		
+		public StringTable build() {
+			char[] chars = new char[mChars.length()];
+			mChars.getChars(0, chars.length, chars, 0);
+			return new StringTable(CharBuffer.wrap(chars), IntBuffer.wrap(mOffsets, 0, mSize + 1).slice());
+		}
+	}
+}